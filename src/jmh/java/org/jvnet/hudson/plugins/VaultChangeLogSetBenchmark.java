@@ -0,0 +1,98 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.jvnet.hudson.plugins.VaultSCMChangeLogSet.VaultSCMChangeLogSetEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures walking the changes of a build, in the compact changelog format
+ * and in the history XML written by earlier versions: iterating all of
+ * them, and opening the changes view at its first and last page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class VaultChangeLogSetBenchmark {
+
+    @Param({"10", "1000", "10000", "100000", "500000"})
+    public int items;
+
+    @Param({"compact", "xml"})
+    public String format;
+
+    private File changelog;
+    private VaultSCMChangeLogSet changes;
+
+    @Setup(Level.Trial)
+    public void writeChangelog() throws Exception {
+        File history = VaultHistoryFixtures.writeHistory(File.createTempFile("vault-history", ".xml"), items, items);
+        if ("xml".equals(format)) {
+            changelog = history;
+        } else {
+            changelog = File.createTempFile("vault-changelog", ".xml");
+            VaultChangeLogWriter writer = new VaultChangeLogWriter(changelog);
+            try {
+                writer.append(history, "$/project");
+            } finally {
+                writer.close();
+            }
+            history.delete();
+        }
+        changes = parse();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteChangelog() {
+        changelog.delete();
+    }
+
+    @Benchmark
+    public int iterate(Blackhole blackhole) {
+        int count = 0;
+        for (VaultSCMChangeLogSetEntry entry : changes) {
+            blackhole.consume(entry);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Loads the build's changes and shows the first page, as the build page
+     * does after a restart.
+     */
+    @Benchmark
+    public int firstPage() throws Exception {
+        return parse().getHead().size();
+    }
+
+    /**
+     * Loads the build's changes and shows the last page, which has to skip
+     * over all the others.
+     */
+    @Benchmark
+    public int lastPage() throws Exception {
+        VaultSCMChangeLogSet set = parse();
+        return set.getPage(set.getPageCount() - 1).size();
+    }
+
+    private VaultSCMChangeLogSet parse() throws Exception {
+        return (VaultSCMChangeLogSet) new VaultSCMChangeLogParser().parse(null, changelog);
+    }
+}
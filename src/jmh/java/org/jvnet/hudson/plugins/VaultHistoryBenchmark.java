@@ -0,0 +1,97 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.util.ArgumentListBuilder;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading VERSIONHISTORY output: parsing it as a build changelog,
+ * and counting it the way polling does, both with {@link VaultHistoryReader}
+ * alone and through {@link VaultPollCallable} reading the output of a
+ * process. The process is cat, so the poll benchmark needs a Unix node.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class VaultHistoryBenchmark {
+
+    @Param({"10", "1000", "10000", "100000", "500000"})
+    public int items;
+
+    private File history;
+    private File changelog;
+    private StreamTaskListener listener;
+
+    @Setup(Level.Trial)
+    public void writeHistory() throws IOException {
+        history = VaultHistoryFixtures.writeHistory(File.createTempFile("vault-history", ".xml"), items, items);
+        changelog = File.createTempFile("vault-changelog", ".xml");
+        VaultChangeLogWriter writer = new VaultChangeLogWriter(changelog);
+        try {
+            writer.append(history, "$/project");
+        } finally {
+            writer.close();
+        }
+        listener = new StreamTaskListener(new NullStream());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteHistory() {
+        history.delete();
+        changelog.delete();
+    }
+
+    @Benchmark
+    public int parseHistoryChangelog() throws Exception {
+        return ((VaultSCMChangeLogSet) new VaultSCMChangeLogParser().parse(null, history)).getSize();
+    }
+
+    @Benchmark
+    public int parseCompactChangelog() throws Exception {
+        return ((VaultSCMChangeLogSet) new VaultSCMChangeLogParser().parse(null, changelog)).getSize();
+    }
+
+    @Benchmark
+    public int countHistory() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(history));
+        try {
+            VaultHistoryReader reader = new VaultHistoryReader(in);
+            int count = 0;
+            while (reader.next()) {
+                count++;
+            }
+            reader.close();
+            return count;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public int pollHistory() throws IOException {
+        ArgumentListBuilder command = new ArgumentListBuilder("cat", history.getAbsolutePath());
+        return new VaultPollCallable(command, null, listener, false, "$/project", 0).call().getChangeCount();
+    }
+}
@@ -0,0 +1,110 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Layout of the compact changelog written by {@link VaultChangeLogWriter}.
+ *
+ * The file starts with a magic number and a header holding the
+ * {@link VaultChangeLogSummary} of the build. The changes follow as one
+ * gzip stream of records, each made of the version, date, user, comment
+ * and repository path of a change. Changelogs of older builds are plain
+ * vault history XML and are recognised by the missing magic number.
+ */
+final class VaultChangeLogFormat {
+
+    private static final byte[] MAGIC = {'V', 'L', 'T', 'C', 'L'};
+
+    private static final int VERSION = 1;
+
+    private VaultChangeLogFormat() {
+    }
+
+    /**
+     * Checks for the magic number without consuming it.
+     *
+     * @param in a stream supporting mark and reset.
+     */
+    static boolean isCompact(InputStream in) throws IOException {
+        byte[] start = new byte[MAGIC.length];
+        in.mark(start.length);
+        try {
+            int read = 0;
+            while (read < start.length) {
+                int n = in.read(start, read, start.length - read);
+                if (n < 0) {
+                    return false;
+                }
+                read += n;
+            }
+            return Arrays.equals(start, MAGIC);
+        } finally {
+            in.reset();
+        }
+    }
+
+    static void writeHeader(DataOutputStream out, VaultChangeLogSummary summary) throws IOException {
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(summary.getEntryCount());
+        out.writeLong(summary.getOldestVersion() == null ? -1 : summary.getOldestVersion());
+        out.writeLong(summary.getNewestVersion() == null ? -1 : summary.getNewestVersion());
+        out.writeInt(summary.getUsers().size());
+        for (Map.Entry<String, Integer> user : summary.getUsers().entrySet()) {
+            writeString(out, user.getKey());
+            out.writeInt(user.getValue());
+        }
+    }
+
+    /**
+     * Reads the header, leaving the stream at the start of the compressed
+     * records.
+     */
+    static VaultChangeLogSummary readHeader(DataInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a compact vault changelog");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported vault changelog version " + version);
+        }
+        int entryCount = in.readInt();
+        long oldestVersion = in.readLong();
+        long newestVersion = in.readLong();
+        VaultChangeLogSummary summary = new VaultChangeLogSummary(entryCount,
+                oldestVersion < 0 ? null : oldestVersion, newestVersion < 0 ? null : newestVersion);
+        int users = in.readInt();
+        for (int i = 0; i < users; i++) {
+            String user = readString(in);
+            summary.addUser(user, in.readInt());
+        }
+        return summary;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
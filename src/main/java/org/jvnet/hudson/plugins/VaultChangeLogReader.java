@@ -0,0 +1,141 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the changes of a build changelog one at a time, whether it is in
+ * the compact format or plain vault history XML written by earlier versions
+ * of the plugin.
+ */
+final class VaultChangeLogReader {
+
+    private final InputStream in;
+    private final VaultChangeLogSummary summary;
+    private final DataInputStream records;
+    private final VaultHistoryReader history;
+    private int remaining;
+    private String version;
+    private String date;
+    private String user;
+    private String comment;
+    private String path;
+
+    VaultChangeLogReader(File changelogFile) throws IOException {
+        in = new BufferedInputStream(new FileInputStream(changelogFile));
+        try {
+            if (VaultChangeLogFormat.isCompact(in)) {
+                summary = VaultChangeLogFormat.readHeader(new DataInputStream(in));
+                remaining = summary.getEntryCount();
+                records = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+                history = null;
+            } else {
+                summary = null;
+                records = null;
+                history = new VaultHistoryReader(in);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the summary stored in a compact changelog, or null for a
+     * history XML changelog.
+     */
+    VaultChangeLogSummary getSummary() {
+        return summary;
+    }
+
+    /**
+     * Advances to the next change.
+     *
+     * @return false once all changes have been read.
+     */
+    boolean next() throws IOException {
+        if (history != null) {
+            if (!history.next()) {
+                return false;
+            }
+            version = history.getVersion();
+            date = history.getDate();
+            user = history.getUser();
+            comment = history.getComment();
+            path = history.getPath();
+            return true;
+        }
+        if (remaining == 0) {
+            return false;
+        }
+        remaining--;
+        version = VaultChangeLogFormat.readString(records);
+        date = VaultChangeLogFormat.readString(records);
+        user = VaultChangeLogFormat.readString(records);
+        comment = VaultChangeLogFormat.readString(records);
+        path = VaultChangeLogFormat.readString(records);
+        return true;
+    }
+
+    /**
+     * Passes over the next change without decoding it where possible.
+     *
+     * @return false once all changes have been read.
+     */
+    boolean skip() throws IOException {
+        if (history != null) {
+            return history.next();
+        }
+        if (remaining == 0) {
+            return false;
+        }
+        remaining--;
+        for (int i = 0; i < 5; i++) {
+            int length = records.readInt();
+            while (length > 0) {
+                int skipped = records.skipBytes(length);
+                if (skipped <= 0) {
+                    throw new EOFException("Truncated vault changelog");
+                }
+                length -= skipped;
+            }
+        }
+        return true;
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    String getDate() {
+        return date;
+    }
+
+    String getUser() {
+        return user;
+    }
+
+    String getComment() {
+        return comment;
+    }
+
+    /**
+     * @return the repository path of the change, or null if not recorded.
+     */
+    String getPath() {
+        return path;
+    }
+
+    void close() throws IOException {
+        if (history != null) {
+            history.close();
+        }
+        in.close();
+    }
+}
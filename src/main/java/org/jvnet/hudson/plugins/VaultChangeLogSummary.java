@@ -0,0 +1,77 @@
+package org.jvnet.hudson.plugins;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Totals of a build changelog: the number of changes, the range of folder
+ * versions they cover and the number of changes made by each user. The
+ * compact changelog format stores them in its header, so they can be shown
+ * without reading the changes themselves.
+ */
+public final class VaultChangeLogSummary {
+
+    private int entryCount;
+    private Long oldestVersion;
+    private Long newestVersion;
+    private final Map<String, Integer> users = new TreeMap<String, Integer>();
+
+    VaultChangeLogSummary() {
+    }
+
+    VaultChangeLogSummary(int entryCount, Long oldestVersion, Long newestVersion) {
+        this.entryCount = entryCount;
+        this.oldestVersion = oldestVersion;
+        this.newestVersion = newestVersion;
+    }
+
+    /**
+     * Counts a change.
+     */
+    void add(String version, String user) {
+        entryCount++;
+        addUser(user, 1);
+        try {
+            long v = Long.parseLong(version);
+            if (oldestVersion == null || v < oldestVersion) {
+                oldestVersion = v;
+            }
+            if (newestVersion == null || v > newestVersion) {
+                newestVersion = v;
+            }
+        } catch (NumberFormatException e) {
+            //not a folder version, leave the range as it is
+        }
+    }
+
+    void addUser(String user, int changes) {
+        Integer count = users.get(user);
+        users.put(user, count == null ? changes : count + changes);
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return the lowest folder version changed, or null if unknown.
+     */
+    public Long getOldestVersion() {
+        return oldestVersion;
+    }
+
+    /**
+     * @return the highest folder version changed, or null if unknown.
+     */
+    public Long getNewestVersion() {
+        return newestVersion;
+    }
+
+    /**
+     * @return the number of changes of each user, by user name.
+     */
+    public Map<String, Integer> getUsers() {
+        return Collections.unmodifiableMap(users);
+    }
+}
@@ -0,0 +1,116 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the changelog of a build from the VERSIONHISTORY output of each
+ * checked out repository path, recording on every change the path it
+ * belongs to. The changelog is written in the compact format described by
+ * {@link VaultChangeLogFormat}. The changes are compressed into a file next
+ * to the changelog as they arrive, and moved behind the summary header once
+ * the last history has been added.
+ */
+final class VaultChangeLogWriter {
+
+    private final File changelogFile;
+    private final File bodyFile;
+    private final DataOutputStream body;
+    private final VaultChangeLogSummary summary = new VaultChangeLogSummary();
+    private Long oldestVersion;
+
+    VaultChangeLogWriter(File changelogFile) throws IOException {
+        this.changelogFile = changelogFile;
+        this.bodyFile = new File(changelogFile.getPath() + ".body");
+        FileOutputStream out = new FileOutputStream(bodyFile);
+        try {
+            body = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out)));
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies the items of a VERSIONHISTORY output file.
+     *
+     * @return the number of items copied.
+     */
+    int append(File history, String repositoryPath) throws IOException {
+        int count = 0;
+        oldestVersion = null;
+        if (history.length() == 0) {
+            return count;
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(history));
+        try {
+            VaultHistoryReader reader = new VaultHistoryReader(in);
+            try {
+                while (reader.next()) {
+                    VaultChangeLogFormat.writeString(body, reader.getVersion());
+                    VaultChangeLogFormat.writeString(body, reader.getDate());
+                    VaultChangeLogFormat.writeString(body, reader.getUser());
+                    VaultChangeLogFormat.writeString(body, reader.getComment());
+                    VaultChangeLogFormat.writeString(body, repositoryPath);
+                    summary.add(reader.getVersion(), reader.getUser());
+                    count++;
+                    try {
+                        long version = Long.parseLong(reader.getVersion());
+                        if (oldestVersion == null || version < oldestVersion) {
+                            oldestVersion = version;
+                        }
+                    } catch (NumberFormatException e) {
+                        //not a folder version, history can not be paged past it
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+
+    /**
+     * @return the lowest folder version copied by the last {@link #append},
+     * or null if none was.
+     */
+    Long getOldestVersion() {
+        return oldestVersion;
+    }
+
+    /**
+     * Writes the summary header and the compressed changes to the changelog.
+     */
+    void close() throws IOException {
+        try {
+            body.close();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(changelogFile)));
+            try {
+                VaultChangeLogFormat.writeHeader(out, summary);
+                InputStream in = new FileInputStream(bodyFile);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            bodyFile.delete();
+        }
+    }
+}
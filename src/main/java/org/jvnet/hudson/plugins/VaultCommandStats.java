@@ -0,0 +1,268 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Launcher;
+import hudson.Proc;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Timing and throughput of a single vault client command.
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class VaultCommandStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String command;
+    private final String repositoryPath;
+    private final long startMillis;
+    private final long wallMillis;
+    private final int exitCode;
+    private final long outputBytes;
+    private final int items;
+    private final int timeouts;
+    private final int retries;
+
+    public VaultCommandStats(String command, String repositoryPath, long startMillis, long wallMillis,
+            int exitCode, long outputBytes, int items) {
+        this(command, repositoryPath, startMillis, wallMillis, exitCode, outputBytes, items, 0, 0);
+    }
+
+    private VaultCommandStats(String command, String repositoryPath, long startMillis, long wallMillis,
+            int exitCode, long outputBytes, int items, int timeouts, int retries) {
+        this.command = command;
+        this.repositoryPath = repositoryPath;
+        this.startMillis = startMillis;
+        this.wallMillis = wallMillis;
+        this.exitCode = exitCode;
+        this.outputBytes = outputBytes;
+        this.items = items;
+        this.timeouts = timeouts;
+        this.retries = retries;
+    }
+
+    /**
+     * Runs a command and measures it. The process output is copied to the
+     * given stream.
+     *
+     * @param command the vault command, such as GET or VERSIONHISTORY.
+     * @param timeoutMillis how long the command may run before it is killed,
+     * or 0 for no limit.
+     */
+    static VaultCommandStats launch(String command, String repositoryPath, Launcher.ProcStarter starter,
+            OutputStream out, long timeoutMillis) throws IOException, InterruptedException {
+        CountingOutputStream counter = new CountingOutputStream(out);
+        long begin = System.nanoTime();
+        Proc proc = starter.stdout(counter).start();
+        long started = System.nanoTime();
+        VaultCommandWatchdog watchdog = VaultCommandWatchdog.watch(proc, timeoutMillis);
+        int exitCode;
+        boolean timedOut;
+        try {
+            exitCode = proc.join();
+        } finally {
+            timedOut = watchdog.stop();
+        }
+        long end = System.nanoTime();
+        counter.endLine();
+        counter.flush();
+        return new VaultCommandStats(command, repositoryPath, TimeUnit.NANOSECONDS.toMillis(started - begin),
+                TimeUnit.NANOSECONDS.toMillis(end - begin), timedOut && exitCode == 0 ? -1 : exitCode,
+                counter.bytes, counter.items, timedOut ? 1 : 0, 0);
+    }
+
+    /**
+     * @return a copy with the number of items replaced.
+     */
+    VaultCommandStats withItems(int items) {
+        return new VaultCommandStats(command, repositoryPath, startMillis, wallMillis, exitCode, outputBytes, items,
+                timeouts, retries);
+    }
+
+    /**
+     * @return a copy with the number of retries and timeouts replaced.
+     */
+    VaultCommandStats withAttempts(int retries, int timeouts) {
+        return new VaultCommandStats(command, repositoryPath, startMillis, wallMillis, exitCode, outputBytes, items,
+                timeouts, retries);
+    }
+
+    @Exported
+    public String getCommand() {
+        return command;
+    }
+
+    @Exported
+    public String getRepositoryPath() {
+        return repositoryPath;
+    }
+
+    /**
+     * @return the time it took to start the process, in milliseconds.
+     */
+    @Exported
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * @return the time from starting the process until it exited, in
+     * milliseconds.
+     */
+    @Exported
+    public long getWallMillis() {
+        return wallMillis;
+    }
+
+    @Exported
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    @Exported
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * @return the number of files fetched by a GET, or of history rows read
+     * from a VERSIONHISTORY.
+     */
+    @Exported
+    public int getItems() {
+        return items;
+    }
+
+    /**
+     * @return the number of attempts at the command killed for running too
+     * long.
+     */
+    @Exported
+    public int getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @return the number of times the command was run again after failing.
+     */
+    @Exported
+    public int getRetries() {
+        return retries;
+    }
+
+    @Override
+    public String toString() {
+        return command + " " + repositoryPath + ": exit code " + exitCode + ", started in " + startMillis
+                + " ms, took " + wallMillis + " ms, " + outputBytes + " bytes, " + items + " items"
+                + (retries > 0 ? ", " + retries + " retries" : "") + (timeouts > 0 ? ", " + timeouts + " timeouts" : "");
+    }
+
+    /**
+     * Counts the bytes written, and the lines naming a repository item as
+     * printed by GET for each file it fetches. A line counts when
+     * {@link VaultGetOutput#namesItem} accepts it, so the count matches the
+     * files the build log reports.
+     */
+    static final class CountingOutputStream extends FilterOutputStream {
+
+        /**
+         * Size above which the line buffer is not kept for the next line.
+         */
+        private static final int MAX_KEPT_LINE = 8192;
+
+        private long bytes;
+        private int items;
+        private byte[] line = new byte[256];
+        private int lineLength;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            for (int i = off; i < off + len; i++) {
+                count(b[i]);
+            }
+        }
+
+        private void count(int b) {
+            bytes++;
+            if (b == '\n') {
+                endLine();
+                return;
+            }
+            if (lineLength == line.length) {
+                byte[] grown = new byte[line.length * 2];
+                System.arraycopy(line, 0, grown, 0, lineLength);
+                line = grown;
+            }
+            line[lineLength++] = (byte) b;
+        }
+
+        int getItems() {
+            return items;
+        }
+
+        /**
+         * Counts the last line, which the client may not have ended.
+         */
+        void endLine() {
+            if (lineLength > 0 && VaultGetOutput.namesItem(line, lineLength)) {
+                items++;
+            }
+            lineLength = 0;
+            if (line.length > MAX_KEPT_LINE) {
+                line = new byte[256];
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read.
+     */
+    static final class CountingInputStream extends FilterInputStream {
+
+        private long bytes;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                bytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                bytes += n;
+            }
+            return n;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+    }
+}
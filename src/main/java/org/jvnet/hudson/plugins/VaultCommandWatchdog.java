@@ -0,0 +1,76 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Proc;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Kills vault commands that run for longer than their timeout, such as a
+ * client hanging on a lost connection to the server. Killing a process
+ * started by a launcher also kills the processes it started.
+ */
+final class VaultCommandWatchdog {
+
+    private static final Logger LOG = Logger.getLogger(VaultCommandWatchdog.class.getName());
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Vault command watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Proc proc;
+    private final ScheduledFuture<?> future;
+    private volatile boolean fired;
+
+    private VaultCommandWatchdog(final Proc proc, long timeoutMillis) {
+        this.proc = proc;
+        if (timeoutMillis <= 0) {
+            future = null;
+            return;
+        }
+        future = TIMER.schedule(new Runnable() {
+            public void run() {
+                fired = true;
+                kill();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts watching a process.
+     *
+     * @param timeoutMillis how long the process may run, or 0 for no limit.
+     */
+    static VaultCommandWatchdog watch(Proc proc, long timeoutMillis) {
+        return new VaultCommandWatchdog(proc, timeoutMillis);
+    }
+
+    private void kill() {
+        try {
+            proc.kill();
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Failed to kill a vault command that timed out", e);
+        }
+    }
+
+    /**
+     * Stops watching the process once it has exited.
+     *
+     * @return whether the process was killed for running too long.
+     */
+    boolean stop() {
+        if (future != null) {
+            future.cancel(false);
+        }
+        return fired;
+    }
+}
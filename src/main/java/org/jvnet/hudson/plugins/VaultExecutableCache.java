@@ -0,0 +1,84 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers where the vault client was found on each node, so that the
+ * remote checks for the executable are made once per node and installation
+ * rather than for every command. An entry is forgotten when its node comes
+ * back online, when the vault installations are reconfigured, or when a
+ * vault command fails to run on the node.
+ */
+public final class VaultExecutableCache {
+
+    public static final VaultExecutableCache INSTANCE = new VaultExecutableCache();
+
+    private final ConcurrentMap<String, String> paths = new ConcurrentHashMap<String, String>();
+
+    private VaultExecutableCache() {
+    }
+
+    private static String key(String nodeName, String installationName) {
+        return nodeName + '\n' + installationName;
+    }
+
+    /**
+     * @param installationName the vault installation, or "" for the default
+     * locations.
+     * @return the path of the executable, or null if not known.
+     */
+    public String get(Node node, String installationName) {
+        return paths.get(key(nodeName(node), installationName));
+    }
+
+    public void put(Node node, String installationName, String pathToVault) {
+        paths.put(key(nodeName(node), installationName), pathToVault);
+    }
+
+    /**
+     * Forgets the executables found on a node.
+     */
+    public void invalidate(Node node) {
+        invalidate(nodeName(node));
+    }
+
+    private void invalidate(String nodeName) {
+        String prefix = nodeName + '\n';
+        for (Iterator<String> it = paths.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets the executables found on all nodes.
+     */
+    public void invalidateAll() {
+        paths.clear();
+    }
+
+    private static String nodeName(Node node) {
+        return node == null ? "" : node.getNodeName();
+    }
+
+    /**
+     * Forgets what was found on a node when it reconnects, as the client may
+     * have been installed, moved or removed in the meantime.
+     */
+    @Extension
+    public static final class Invalidator extends ComputerListener {
+
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            INSTANCE.invalidate(c.getName());
+        }
+    }
+}
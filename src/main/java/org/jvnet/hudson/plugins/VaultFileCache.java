@@ -0,0 +1,82 @@
+package org.jvnet.hudson.plugins;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the contents of single files fetched from vault on the controller,
+ * by server, repository, path and version, so that reading the same version
+ * of a file again does not run the vault client. The least recently used
+ * files are dropped once the cache holds more than its size in bytes.
+ */
+public final class VaultFileCache {
+
+    /**
+     * Total size of the cached files, in bytes.
+     */
+    private static final long MAX_BYTES = Long.getLong(VaultFileCache.class.getName() + ".maxBytes", 16L * 1024 * 1024);
+
+    public static final VaultFileCache INSTANCE = new VaultFileCache();
+
+    private final LinkedHashMap<String, byte[]> files = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    private VaultFileCache() {
+    }
+
+    static String key(String serverName, String repositoryName, String repositoryPath, long version) {
+        return serverName + '\n' + repositoryName + '\n' + repositoryPath + '\n' + version;
+    }
+
+    /**
+     * @return the contents of the file, or null if not cached. The array
+     * must not be modified.
+     */
+    public synchronized byte[] get(String key) {
+        byte[] contents = files.get(key);
+        if (contents == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return contents;
+    }
+
+    /**
+     * Caches the contents of a file, unless it would take more than a
+     * quarter of the cache.
+     */
+    public synchronized void put(String key, byte[] contents) {
+        if (contents.length > MAX_BYTES / 4) {
+            return;
+        }
+        byte[] previous = files.put(key, contents);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+        bytes += contents.length;
+        for (Iterator<Map.Entry<String, byte[]>> it = files.entrySet().iterator(); bytes > MAX_BYTES && it.hasNext();) {
+            bytes -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    public synchronized int getSize() {
+        return files.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
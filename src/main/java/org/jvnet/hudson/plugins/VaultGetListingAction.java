@@ -0,0 +1,57 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Util;
+import hudson.model.Action;
+import hudson.model.Run;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.http.HttpServletResponse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Links a build to the list of files fetched by its vault GETs, which is
+ * kept compressed in the build folder rather than in the build log.
+ */
+public class VaultGetListingAction implements Action {
+
+    static final String FILE_NAME = "vault-get.txt.gz";
+
+    /**
+     * @return the listing file of a build.
+     */
+    static File getFile(Run<?, ?> build) {
+        return new File(build.getRootDir(), FILE_NAME);
+    }
+
+    public String getIconFileName() {
+        return "notepad.png";
+    }
+
+    public String getDisplayName() {
+        return "Vault GET Listing";
+    }
+
+    public String getUrlName() {
+        return "vaultGetListing";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Run<?, ?> build = req.findAncestorObject(Run.class);
+        File listing = build == null ? null : getFile(build);
+        if (listing == null || !listing.exists()) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        rsp.setContentType("text/plain");
+        InputStream in = new GZIPInputStream(new FileInputStream(listing));
+        try {
+            Util.copyStream(in, rsp.getOutputStream());
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.console.LineTransformationOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Condenses the output of vault GET for the build log. The progress lines
+ * the client prints for each file it fetches are counted rather than
+ * logged, a progress line is printed every so often and a summary once the
+ * GET is done. Every other line is logged as it is, and so is any line
+ * mentioning an error, a warning or a failure, even when it names a file.
+ * The file lines can be kept in a separate listing instead.
+ */
+final class VaultGetOutput extends LineTransformationOutputStream {
+
+    /**
+     * Minimum time between two progress lines.
+     */
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toMillis(
+            Integer.getInteger(VaultGetOutput.class.getName() + ".progressSeconds", 10));
+
+    /**
+     * Words starting the line the client prints for each file it fetches.
+     */
+    private static final String[] FILE_VERBS = {"Getting", "Fetching", "Retrieving", "Retrieved", "Updating",
+        "Updated", "Creating", "Created"};
+
+    /**
+     * Words marking a line as something to see in the build log. Merge is
+     * only an alert in the "needs merge" status of a file that could not be
+     * merged, as other lines may echo the -merge option.
+     */
+    private static final String[] ALERTS = {"error", "warning", "fail", "exception", "conflict", "renegade",
+        "needs merge", "denied", "unable", "cannot", "could not"};
+
+    private final PrintStream log;
+    private final OutputStream listing;
+    private final String repositoryPath;
+    private final long begin = System.currentTimeMillis();
+    private long lastProgress = begin;
+    private long bytes;
+    private int files;
+    private int reportedFiles;
+
+    /**
+     * @param listing where to copy the file lines to, or null to drop them.
+     */
+    VaultGetOutput(PrintStream log, OutputStream listing, String repositoryPath) {
+        this.log = log;
+        this.listing = listing;
+        this.repositoryPath = repositoryPath;
+    }
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        bytes += len;
+        if (namesItem(b, len)) {
+            files++;
+            if (listing != null) {
+                listing.write(b, 0, len);
+            }
+        } else {
+            log.write(b, 0, len);
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastProgress >= PROGRESS_INTERVAL && files > reportedFiles) {
+            log.println("Fetching " + repositoryPath + ": " + files + " files, "
+                    + bytes + " bytes of output after " + TimeUnit.MILLISECONDS.toSeconds(now - begin) + " s");
+            lastProgress = now;
+            reportedFiles = files;
+        }
+    }
+
+    /**
+     * @return whether the line is the progress line of a file fetched, such
+     * as "Getting $/project/file.txt", and mentions no problem.
+     */
+    static boolean namesItem(byte[] b, int len) {
+        //only the ASCII words are looked at, so the encoding of paths does not matter
+        StringBuilder text = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            text.append((char) (b[i] & 0xff));
+        }
+        String line = text.toString().trim();
+        if (line.indexOf("$/") < 0) {
+            return false;
+        }
+        boolean progress = false;
+        for (String verb : FILE_VERBS) {
+            if (line.startsWith(verb + ' ')) {
+                progress = true;
+                break;
+            }
+        }
+        if (!progress) {
+            return false;
+        }
+        //a file whose path contains one of the words is logged too, better than hiding a problem
+        String lower = line.toLowerCase(Locale.ENGLISH);
+        for (String alert : ALERTS) {
+            if (lower.indexOf(alert) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Logs the number of files seen and the output of a last line not ended
+     * by a line break.
+     */
+    void summarize() throws IOException {
+        forceEol();
+        log.println("Fetched " + files + " files of " + repositoryPath + " (" + bytes + " bytes of output) in "
+                + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - begin) + " s");
+    }
+
+    int getFiles() {
+        return files;
+    }
+}
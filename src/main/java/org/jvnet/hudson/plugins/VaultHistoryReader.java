@@ -0,0 +1,95 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pull parser over the XML printed by the vault client VERSIONHISTORY
+ * command. Only the attributes of the current &lt;item&gt; are kept in
+ * memory, so arbitrarily long histories can be read with constant overhead.
+ */
+final class VaultHistoryReader {
+
+    private final XMLStreamReader reader;
+    private String user;
+    private String date;
+    private String comment;
+    private String version;
+    private String path;
+
+    VaultHistoryReader(InputStream in) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        try {
+            reader = factory.createXMLStreamReader(in);
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to read vault history: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Advances to the next &lt;item&gt; element.
+     *
+     * @return false once the end of the document has been reached.
+     */
+    boolean next() throws IOException {
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT
+                        && "item".equals(reader.getLocalName())) {
+                    user = attribute("user");
+                    date = attribute("date");
+                    comment = attribute("comment");
+                    version = attribute("version");
+                    path = reader.getAttributeValue(null, "path");
+                    return true;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed vault history: " + e.getMessage(), e);
+        }
+        return false;
+    }
+
+    private String attribute(String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value == null ? "" : value;
+    }
+
+    String getUser() {
+        return user;
+    }
+
+    String getDate() {
+        return date;
+    }
+
+    String getComment() {
+        return comment;
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the repository path recorded in a build changelog, or null for
+     * plain vault client output.
+     */
+    String getPath() {
+        return path;
+    }
+
+    void close() {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            // nothing left to read
+        }
+    }
+}
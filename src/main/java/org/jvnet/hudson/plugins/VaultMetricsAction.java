@@ -0,0 +1,94 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.model.Action;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Records the vault commands run by the checkout of a build, so that the
+ * time spent in vault can be read from the remote API of the build.
+ */
+@ExportedBean
+public class VaultMetricsAction implements Action {
+
+    private final List<VaultCommandStats> commands = new CopyOnWriteArrayList<VaultCommandStats>();
+    private long queueWaitMillis;
+
+    public void add(VaultCommandStats stats) {
+        commands.add(stats);
+    }
+
+    @Exported(inline = true)
+    public List<VaultCommandStats> getCommands() {
+        return commands;
+    }
+
+    @Exported
+    public long getTotalWallMillis() {
+        long total = 0;
+        for (VaultCommandStats stats : commands) {
+            total += stats.getWallMillis();
+        }
+        return total;
+    }
+
+    public synchronized void addQueueWait(long waitMillis) {
+        queueWaitMillis += waitMillis;
+    }
+
+    /**
+     * @return the time commands spent waiting for the server's concurrency
+     * limit, in milliseconds.
+     */
+    @Exported
+    public synchronized long getQueueWaitMillis() {
+        return queueWaitMillis;
+    }
+
+    @Exported
+    public long getTotalOutputBytes() {
+        long total = 0;
+        for (VaultCommandStats stats : commands) {
+            total += stats.getOutputBytes();
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of times commands were run again after failing.
+     */
+    @Exported
+    public int getRetries() {
+        int total = 0;
+        for (VaultCommandStats stats : commands) {
+            total += stats.getRetries();
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of commands killed for running too long.
+     */
+    @Exported
+    public int getTimeouts() {
+        int total = 0;
+        for (VaultCommandStats stats : commands) {
+            total += stats.getTimeouts();
+        }
+        return total;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Vault command metrics";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
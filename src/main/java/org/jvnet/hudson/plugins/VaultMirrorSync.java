@@ -0,0 +1,208 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Brings a workspace folder in line with a mirror on the same node. Only
+ * files whose size or time differ from the mirror are copied, and files
+ * copied by an earlier sync that are no longer in the mirror are deleted.
+ * The files copied are recorded in the workspace folder for the next sync.
+ * Files in the workspace that never came from the mirror, such as build
+ * output, are left alone. Unlike an Ant file set, no files are excluded by
+ * default.
+ */
+final class VaultMirrorSync implements FilePath.FileCallable<VaultMirrorSync.Result> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name of the file listing what was copied, in the workspace folder.
+     */
+    static final String MANIFEST = ".vaultmirror-files";
+
+    private final String target;
+    private final Set<String> ignored;
+    private final Set<String> keep;
+
+    /**
+     * @param target the workspace folder, on the node of the mirror.
+     * @param ignored names of files at the root of the mirror that are not
+     * copied, such as its version marker.
+     * @param keep the relative paths of all files in the repository, to
+     * remove files deleted from it from the mirror first, or null to leave
+     * the mirror as it is.
+     */
+    VaultMirrorSync(FilePath target, Collection<String> ignored, Collection<String> keep) {
+        this.target = target.getRemote();
+        this.ignored = new HashSet<String>(ignored);
+        this.keep = keep == null ? null : new HashSet<String>(keep);
+    }
+
+    /**
+     * What a sync did.
+     */
+    static final class Result implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private int copied;
+        private int unchanged;
+        private int deleted;
+        private int pruned;
+
+        int getCopied() {
+            return copied;
+        }
+
+        int getUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * @return the number of files deleted from the workspace.
+         */
+        int getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * @return the number of files deleted from the mirror.
+         */
+        int getPruned() {
+            return pruned;
+        }
+    }
+
+    public Result invoke(File mirror, VirtualChannel channel) throws IOException, InterruptedException {
+        Result result = new Result();
+        Set<String> files = new TreeSet<String>();
+        walk(mirror, "", files, result);
+
+        File folder = new File(target);
+        File manifest = new File(folder, MANIFEST);
+        Set<String> copiedBefore = readManifest(manifest);
+        for (String path : copiedBefore) {
+            if (!files.contains(path)) {
+                File stale = new File(folder, path);
+                stale.setWritable(true);
+                if (stale.delete()) {
+                    result.deleted++;
+                }
+            }
+        }
+
+        for (String path : files) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            File from = new File(mirror, path);
+            File to = new File(folder, path);
+            if (to.isFile() && to.length() == from.length() && to.lastModified() == from.lastModified()) {
+                result.unchanged++;
+                continue;
+            }
+            copy(from, to);
+            result.copied++;
+        }
+        writeManifest(manifest, files);
+        return result;
+    }
+
+    /**
+     * Lists the files of the mirror, deleting those no longer in the
+     * repository on the way.
+     */
+    private void walk(File dir, String prefix, Set<String> files, Result result) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                walk(child, path + '/', files, result);
+            } else if (prefix.length() == 0 && ignored.contains(path)) {
+                continue;
+            } else if (keep != null && !keep.contains(path)) {
+                child.setWritable(true);
+                if (child.delete()) {
+                    result.pruned++;
+                }
+            } else {
+                files.add(path);
+            }
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        to.getParentFile().mkdirs();
+        if (to.exists()) {
+            //vault leaves files read only unless told otherwise
+            to.setWritable(true);
+        }
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                Util.copyStream(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        to.setLastModified(from.lastModified());
+        if (!from.canWrite()) {
+            to.setWritable(false);
+        }
+    }
+
+    private static Set<String> readManifest(File manifest) throws IOException {
+        Set<String> paths = new HashSet<String>();
+        if (!manifest.exists()) {
+            return paths;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    paths.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return paths;
+    }
+
+    private static void writeManifest(File manifest, Set<String> paths) throws IOException {
+        manifest.getParentFile().mkdirs();
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(manifest), "UTF-8"));
+        try {
+            for (String path : paths) {
+                writer.print(path);
+                writer.print('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Fetches a repository folder with several vault GET processes, one per
+ * immediate subfolder plus one for the files at the root of the folder,
+ * running up to a given number at the same time. Folders whose contents are
+ * partly filtered out are listed and fetched piece by piece. The output of
+ * each process is kept in a temporary file and passed on in one piece once
+ * the process has finished. The first GET to fail stops the others.
+ */
+final class VaultParallelGet {
+
+    /**
+     * Root files are fetched in batches to keep command lines short.
+     */
+    private static final int FILES_PER_COMMAND = 50;
+
+    /**
+     * Builds the vault command lines used by the parallel GET.
+     */
+    interface Commands {
+
+        ArgumentListBuilder listFolder(String repositoryPath);
+
+        ArgumentListBuilder get(List<String> repositoryPaths, FilePath localFolder);
+
+        /**
+         * Called with the measurements of each command once it has exited,
+         * possibly from several threads at once.
+         */
+        void completed(VaultCommandStats stats);
+
+        /**
+         * Waits for the server's limit on concurrent commands of the kind.
+         */
+        VaultServerLimiter.Permit acquire(VaultServerLimiter.Operation operation) throws InterruptedException;
+
+        /**
+         * @return how long a command of the kind may run before it is
+         * killed, in milliseconds, or 0 for no limit.
+         */
+        long getTimeoutMillis(VaultServerLimiter.Operation operation);
+
+        /**
+         * @return the retry policy for one command.
+         */
+        VaultRetry retry();
+    }
+
+    private final Launcher launcher;
+    private final FilePath workspace;
+    private final TaskListener listener;
+    private final Map<String, String> envs;
+    private final Commands commands;
+    /**
+     * Output files of the GETs, deleted once the parallel GET is done.
+     */
+    private final List<File> outputs = Collections.synchronizedList(new ArrayList<File>());
+
+    VaultParallelGet(Launcher launcher, FilePath workspace, TaskListener listener,
+            Map<String, String> envs, Commands commands) {
+        this.launcher = launcher;
+        this.workspace = workspace;
+        this.listener = listener;
+        this.envs = envs;
+        this.commands = commands;
+    }
+
+    /**
+     * Fetches the repository path into a folder of the workspace.
+     *
+     * @param filter folders to include or leave out; folders containing
+     * filtered content are listed and fetched piece by piece.
+     * @param threads the maximum number of concurrent GET processes. Above
+     * 1, the immediate subfolders are always fetched separately.
+     * @param output where to write the output of each GET once it has
+     * finished.
+     * @return the exit code of the first failed command, or 0. GETs still
+     * running when a command fails are stopped.
+     */
+    int run(String repositoryPath, FilePath localFolder, VaultPathFilter filter, int threads,
+            OutputStream output) throws IOException, InterruptedException {
+        List<Callable<Shard>> shards = new ArrayList<Callable<Shard>>();
+        int cmdResult = plan(repositoryPath, "", localFolder, filter, threads > 1, shards);
+        if (cmdResult != 0) {
+            return cmdResult;
+        }
+        if (shards.isEmpty()) {
+            listener.getLogger().println("Nothing to fetch from " + repositoryPath);
+            return 0;
+        }
+
+        listener.getLogger().println("Fetching " + repositoryPath + " in " + shards.size()
+                + " parts with up to " + threads + " concurrent GETs");
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, shards.size())));
+        try {
+            CompletionService<Shard> completion = new ExecutorCompletionService<Shard>(executor);
+            List<Future<Shard>> futures = new ArrayList<Future<Shard>>();
+            for (Callable<Shard> shard : shards) {
+                futures.add(completion.submit(shard));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                Shard shard;
+                try {
+                    shard = completion.take().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    }
+                    throw new IOException("Parallel GET failed", cause);
+                }
+                listener.getLogger().println("--- " + shard.name + " (exit code " + shard.exitCode + ")");
+                InputStream in = new FileInputStream(shard.output);
+                try {
+                    Util.copyStream(in, output);
+                } finally {
+                    in.close();
+                    shard.output.delete();
+                }
+                if (shard.exitCode != 0) {
+                    if (i + 1 < futures.size()) {
+                        listener.getLogger().println("Stopping the other GETs of " + repositoryPath);
+                    }
+                    return shard.exitCode;
+                }
+            }
+            return 0;
+        } finally {
+            //interrupts GETs still running after a failure or abort, which kills their processes
+            executor.shutdownNow();
+            synchronized (outputs) {
+                for (File file : outputs) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the GETs needed to fetch a repository folder, listing the folder
+     * if it can not be fetched as a whole.
+     *
+     * @param split list the folder even if it could be fetched as a whole.
+     */
+    private int plan(String repositoryPath, String relativePath, FilePath localFolder,
+            VaultPathFilter filter, boolean split, List<Callable<Shard>> shards)
+            throws IOException, InterruptedException {
+        if (!split && !filter.needsListing(relativePath)) {
+            shards.add(new GetCallable(repositoryPath, Collections.singletonList(repositoryPath), localFolder));
+            return 0;
+        }
+
+        ByteArrayOutputStream listing = new ByteArrayOutputStream();
+        VaultCommandStats stats;
+        VaultRetry retry = commands.retry();
+        do {
+            listing.reset();
+            VaultServerLimiter.Permit permit = commands.acquire(VaultServerLimiter.Operation.HISTORY);
+            try {
+                stats = VaultCommandStats.launch("LISTFOLDER", repositoryPath,
+                        launcher.launch().cmds(commands.listFolder(repositoryPath)).envs(envs).pwd(workspace), listing,
+                        commands.getTimeoutMillis(VaultServerLimiter.Operation.HISTORY));
+            } finally {
+                permit.release();
+            }
+        } while (retry.again(stats, listener));
+        stats = retry.complete(stats, listener);
+        commands.completed(stats);
+        int cmdResult = stats.getExitCode();
+        if (cmdResult != 0) {
+            listener.getLogger().write(listing.toByteArray());
+            listener.fatalError("Listing " + repositoryPath + " failed with exit code " + cmdResult);
+            return cmdResult;
+        }
+
+        List<String> folders = new ArrayList<String>();
+        List<String> files = new ArrayList<String>();
+        readListing(new ByteArrayInputStream(listing.toByteArray()), repositoryPath, folders, files);
+
+        List<String> included = new ArrayList<String>();
+        for (String file : files) {
+            String relativeFile = childPath(relativePath, file);
+            if (filter.isIncluded(relativeFile) && !filter.isExcluded(relativeFile)) {
+                included.add(childPath(repositoryPath, file));
+            }
+        }
+        for (int i = 0; i < included.size(); i += FILES_PER_COMMAND) {
+            List<String> batch = new ArrayList<String>(
+                    included.subList(i, Math.min(included.size(), i + FILES_PER_COMMAND)));
+            shards.add(new GetCallable(repositoryPath + " (files)", batch, localFolder));
+        }
+
+        for (String folder : folders) {
+            String relativeFolder = childPath(relativePath, folder);
+            if (filter.isExcluded(relativeFolder) || !filter.mayIncludeBelow(relativeFolder)) {
+                listener.getLogger().println("Skipping " + childPath(repositoryPath, folder));
+                continue;
+            }
+            cmdResult = plan(childPath(repositoryPath, folder), relativeFolder, localFolder.child(folder),
+                    filter, false, shards);
+            if (cmdResult != 0) {
+                return cmdResult;
+            }
+        }
+        return 0;
+    }
+
+    private static String childPath(String parent, String name) {
+        if (parent.length() == 0) {
+            return name;
+        }
+        return parent.endsWith("/") ? parent + name : parent + "/" + name;
+    }
+
+    /**
+     * Collects the names of the immediate subfolders and files of the
+     * listed folder from LISTFOLDER output.
+     */
+    static void readListing(InputStream in, String repositoryPath, List<String> folders,
+            List<String> files) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                int depth = 0;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.END_ELEMENT && "folder".equals(reader.getLocalName())) {
+                        depth--;
+                    } else if (event == XMLStreamConstants.START_ELEMENT) {
+                        String element = reader.getLocalName();
+                        //depth 1 is inside the listed folder
+                        if ("folder".equals(element)) {
+                            if (depth == 1) {
+                                folders.add(lastSegment(reader.getAttributeValue(null, "name")));
+                            }
+                            depth++;
+                        } else if ("file".equals(element) && depth == 1) {
+                            files.add(lastSegment(reader.getAttributeValue(null, "name")));
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed folder listing of " + repositoryPath + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads a recursive folder listing, collecting the paths of all files
+     * relative to the listed folder, separated by '/'.
+     */
+    static void readFileTree(InputStream in, String repositoryPath, Collection<String> files) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                //relative paths of the folders we are in, the listed folder first
+                LinkedList<String> folders = new LinkedList<String>();
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.END_ELEMENT && "folder".equals(reader.getLocalName())) {
+                        folders.removeLast();
+                    } else if (event == XMLStreamConstants.START_ELEMENT) {
+                        String element = reader.getLocalName();
+                        if ("folder".equals(element)) {
+                            folders.add(folders.isEmpty() ? ""
+                                    : folders.getLast() + lastSegment(reader.getAttributeValue(null, "name")) + '/');
+                        } else if ("file".equals(element) && !folders.isEmpty()) {
+                            files.add(folders.getLast() + lastSegment(reader.getAttributeValue(null, "name")));
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed folder listing of " + repositoryPath + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static String lastSegment(String name) {
+        if (name == null) {
+            return "";
+        }
+        String trimmed = name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+        return trimmed.substring(trimmed.lastIndexOf('/') + 1);
+    }
+
+    private static final class Shard {
+
+        private final String name;
+        private final int exitCode;
+        private final File output;
+
+        Shard(String name, int exitCode, File output) {
+            this.name = name;
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+    }
+
+    private final class GetCallable implements Callable<Shard> {
+
+        private final String name;
+        private final List<String> repositoryPaths;
+        private final FilePath localFolder;
+
+        GetCallable(String name, List<String> repositoryPaths, FilePath localFolder) {
+            this.name = name;
+            this.repositoryPaths = repositoryPaths;
+            this.localFolder = localFolder;
+        }
+
+        public Shard call() throws IOException, InterruptedException {
+            localFolder.mkdirs();
+            File file = File.createTempFile("vault-get", ".log");
+            outputs.add(file);
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+            VaultCommandStats stats;
+            VaultRetry retry = commands.retry();
+            try {
+                do {
+                    VaultServerLimiter.Permit permit = commands.acquire(VaultServerLimiter.Operation.GET);
+                    try {
+                        stats = VaultCommandStats.launch("GET", name,
+                                launcher.launch().cmds(commands.get(repositoryPaths, localFolder)).envs(envs).pwd(workspace),
+                                output, commands.getTimeoutMillis(VaultServerLimiter.Operation.GET));
+                    } finally {
+                        permit.release();
+                    }
+                } while (retry.again(stats, listener));
+            } finally {
+                output.close();
+            }
+            stats = retry.complete(stats, listener);
+            commands.completed(stats);
+            return new Shard(name, stats.getExitCode(), file);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.jvnet.hudson.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Include and exclude patterns for the folders fetched below a repository
+ * path. Patterns are relative to the repository path and use '/' as the
+ * separator; '*' matches within one folder name and '**' matches any number
+ * of folders. A pattern matching a folder also applies to everything below
+ * it, so "docs" excludes "docs/images/logo.png".
+ */
+final class VaultPathFilter {
+
+    private final List<String[]> includes;
+    private final List<String[]> excludes;
+
+    /**
+     * @param includes comma or newline separated patterns, empty to include
+     * everything.
+     * @param excludes comma or newline separated patterns.
+     */
+    VaultPathFilter(String includes, String excludes) {
+        this.includes = parse(includes);
+        this.excludes = parse(excludes);
+    }
+
+    private static List<String[]> parse(String patterns) {
+        List<String[]> result = new ArrayList<String[]>();
+        if (patterns == null) {
+            return result;
+        }
+        for (String pattern : patterns.split("[,\\n\\r]+")) {
+            String[] segments = split(pattern.trim());
+            if (segments.length > 0) {
+                result.add(segments);
+            }
+        }
+        return result;
+    }
+
+    private static String[] split(String path) {
+        List<String> segments = new ArrayList<String>();
+        for (String segment : path.split("/")) {
+            if (segment.length() > 0 && !segment.equals("$")) {
+                segments.add(segment);
+            }
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    /**
+     * @return true if every folder and file is fetched.
+     */
+    boolean isEmpty() {
+        return includes.isEmpty() && excludes.isEmpty();
+    }
+
+    /**
+     * @param relativePath a path relative to the repository path.
+     */
+    boolean isExcluded(String relativePath) {
+        return matchesSelfOrParent(excludes, split(relativePath));
+    }
+
+    /**
+     * @param relativePath a path relative to the repository path.
+     */
+    boolean isIncluded(String relativePath) {
+        return includes.isEmpty() || matchesSelfOrParent(includes, split(relativePath));
+    }
+
+    /**
+     * @return true if the folder can not be fetched as a whole, because some
+     * of its contents are filtered out or only some of them are included.
+     */
+    boolean needsListing(String relativePath) {
+        String[] path = split(relativePath);
+        if (!includes.isEmpty() && !matchesSelfOrParent(includes, path)) {
+            return true;
+        }
+        for (String[] pattern : excludes) {
+            if (matchesBelow(pattern, 0, path, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if something below the folder may be included.
+     */
+    boolean mayIncludeBelow(String relativePath) {
+        if (isIncluded(relativePath)) {
+            return true;
+        }
+        String[] path = split(relativePath);
+        for (String[] pattern : includes) {
+            if (matchesBelow(pattern, 0, path, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesSelfOrParent(List<String[]> patterns, String[] path) {
+        for (String[] pattern : patterns) {
+            for (int length = 1; length <= path.length; length++) {
+                if (matches(pattern, 0, path, 0, length)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(String[] pattern, int p, String[] path, int s, int length) {
+        if (p == pattern.length) {
+            return s == length;
+        }
+        if (pattern[p].equals("**")) {
+            for (int next = s; next <= length; next++) {
+                if (matches(pattern, p + 1, path, next, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return s < length && matchesSegment(pattern[p], path[s]) && matches(pattern, p + 1, path, s + 1, length);
+    }
+
+    /**
+     * @return true if the pattern can match some path strictly below the
+     * given one.
+     */
+    private static boolean matchesBelow(String[] pattern, int p, String[] path, int s) {
+        if (s == path.length) {
+            //anything left in the pattern can match deeper folders
+            return p < pattern.length;
+        }
+        if (p == pattern.length) {
+            return false;
+        }
+        if (pattern[p].equals("**")) {
+            return matchesBelow(pattern, p + 1, path, s) || matchesBelow(pattern, p, path, s + 1);
+        }
+        return matchesSegment(pattern[p], path[s]) && matchesBelow(pattern, p + 1, path, s + 1);
+    }
+
+    private static boolean matchesSegment(String pattern, String name) {
+        return wildcard(pattern, 0, name, 0);
+    }
+
+    private static boolean wildcard(String pattern, int p, String name, int n) {
+        if (p == pattern.length()) {
+            return n == name.length();
+        }
+        char c = pattern.charAt(p);
+        if (c == '*') {
+            for (int next = n; next <= name.length(); next++) {
+                if (wildcard(pattern, p + 1, name, next)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (n == name.length()) {
+            return false;
+        }
+        boolean same = c == '?' || Character.toLowerCase(c) == Character.toLowerCase(name.charAt(n));
+        return same && wildcard(pattern, p + 1, name, n + 1);
+    }
+}
@@ -0,0 +1,125 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.util.ArgumentListBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a vault VERSIONHISTORY command on the node and parses its output
+ * there, so that only a {@link VaultPollResult} travels back over the
+ * channel.
+ */
+final class VaultPollCallable implements Callable<VaultPollResult, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ArgumentListBuilder command;
+    private final String workingDirectory;
+    private final TaskListener listener;
+    private final boolean newestOnly;
+    private final String repositoryPath;
+    private final long timeoutMillis;
+
+    /**
+     * @param workingDirectory directory to run vault in, or null for the
+     * default.
+     * @param newestOnly stop reading the output after the first history row.
+     * @param repositoryPath the queried path, as reported in the command
+     * measurements.
+     * @param timeoutMillis how long the command may run before it is killed,
+     * or 0 for no limit.
+     */
+    VaultPollCallable(ArgumentListBuilder command, String workingDirectory,
+            TaskListener listener, boolean newestOnly, String repositoryPath, long timeoutMillis) {
+        this.command = command;
+        this.workingDirectory = workingDirectory;
+        this.listener = listener;
+        this.newestOnly = newestOnly;
+        this.repositoryPath = repositoryPath;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return the result of the query. A failed query is returned with the
+     * exit code, or a timeout, in its measurements rather than thrown, so the
+     * caller can decide whether to run it again.
+     */
+    public VaultPollResult call() throws IOException {
+        Launcher.ProcStarter starter = new Launcher.LocalLauncher(listener).launch()
+                .cmds(command).envs(new String[0]).readStdout();
+        if (workingDirectory != null) {
+            starter.pwd(new File(workingDirectory));
+        }
+
+        int count = 0;
+        Long newestVersion = null;
+        long begin = System.nanoTime();
+        Proc proc = starter.start();
+        long started = System.nanoTime();
+        VaultCommandWatchdog watchdog = VaultCommandWatchdog.watch(proc, timeoutMillis);
+        VaultCommandStats.CountingInputStream stdout = new VaultCommandStats.CountingInputStream(proc.getStdout());
+        try {
+            VaultHistoryReader reader = new VaultHistoryReader(stdout);
+            try {
+                while (reader.next()) {
+                    count++;
+                    long version = Long.parseLong(reader.getVersion());
+                    if (newestVersion == null || version > newestVersion) {
+                        newestVersion = version;
+                    }
+                    if (newestOnly) {
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            if (newestOnly && count > 0) {
+                //we have our answer, the rest of the output is not needed
+                return new VaultPollResult(count, newestVersion, measure(begin, started, 0, stdout, count, false));
+            }
+
+            int cmdResult = proc.join();
+            boolean timedOut = watchdog.stop();
+            return new VaultPollResult(count, newestVersion,
+                    measure(begin, started, timedOut && cmdResult == 0 ? -1 : cmdResult, stdout, count, timedOut));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected version in vault history: " + e.getMessage(), e);
+        } catch (IOException e) {
+            if (watchdog.stop()) {
+                //the output was cut short by the kill
+                return new VaultPollResult(count, newestVersion, measure(begin, started, -1, stdout, count, true));
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while querying vault history", e);
+        } finally {
+            watchdog.stop();
+            kill(proc);
+        }
+    }
+
+    private VaultCommandStats measure(long begin, long started, int exitCode,
+            VaultCommandStats.CountingInputStream stdout, int count, boolean timedOut) {
+        return new VaultCommandStats("VERSIONHISTORY", repositoryPath,
+                TimeUnit.NANOSECONDS.toMillis(started - begin),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), exitCode, stdout.getBytes(), count)
+                .withAttempts(0, timedOut ? 1 : 0);
+    }
+
+    private static void kill(Proc proc) throws IOException {
+        try {
+            if (proc.isAlive()) {
+                proc.kill();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
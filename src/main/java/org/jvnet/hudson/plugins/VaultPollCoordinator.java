@@ -0,0 +1,178 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Util;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares vault history queries between polls that look at the same server,
+ * repository, path and baseline. Polls that run at the same time wait for a
+ * single in-flight query, and its result is reused until it is older than
+ * the time to live.
+ */
+public final class VaultPollCoordinator {
+
+    private static final Logger LOG = Logger.getLogger(VaultPollCoordinator.class.getName());
+
+    /**
+     * How long a finished query result is reused, in seconds.
+     */
+    private static final long TTL = TimeUnit.SECONDS.toMillis(
+            Integer.getInteger(VaultPollCoordinator.class.getName() + ".ttlSeconds", 30));
+
+    public static final VaultPollCoordinator INSTANCE = new VaultPollCoordinator(TTL);
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final long ttl;
+
+    /**
+     * A vault query run on behalf of all polls sharing a key.
+     */
+    public interface Query {
+
+        VaultPollResult run() throws IOException, InterruptedException;
+    }
+
+    private static final class Entry {
+
+        private final FutureTask<VaultPollResult> task;
+        private volatile long completedAt;
+
+        Entry(final Query query) {
+            task = new FutureTask<VaultPollResult>(new Callable<VaultPollResult>() {
+                public VaultPollResult call() throws Exception {
+                    return query.run();
+                }
+            });
+        }
+
+        boolean isExpired(long now, long ttl) {
+            return completedAt != 0 && now - completedAt > ttl;
+        }
+    }
+
+    /**
+     * @param ttl how long a finished query result is reused, in
+     * milliseconds.
+     */
+    VaultPollCoordinator(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Builds the key under which polls share their results. Only a digest
+     * of the password is kept, but jobs with different passwords, SSL
+     * settings or vault installations never share a query.
+     */
+    public static String key(String serverName, String repositoryName, String userName, String password,
+            boolean sslEnabled, String installationName, String path, String baseline) {
+        return serverName + '\n' + repositoryName + '\n' + userName + '\n' + Util.getDigestOf(password)
+                + '\n' + sslEnabled + '\n' + installationName + '\n' + path + '\n' + baseline;
+    }
+
+    /**
+     * Returns the result of a query for the key, running the query in the
+     * calling thread only if no other poll is running it or has recently
+     * run it.
+     */
+    public VaultPollResult poll(String key, Query query) throws IOException, InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            Entry entry = entries.get(key);
+            if (entry != null && entry.isExpired(now, ttl)) {
+                entries.remove(key, entry);
+                continue;
+            }
+
+            boolean owner = false;
+            if (entry == null) {
+                Entry created = new Entry(query);
+                entry = entries.putIfAbsent(key, created);
+                if (entry == null) {
+                    entry = created;
+                    owner = true;
+                }
+            }
+
+            if (owner) {
+                misses.incrementAndGet();
+                purgeExpired(now);
+                entry.task.run();
+                entry.completedAt = System.currentTimeMillis();
+            } else {
+                hits.incrementAndGet();
+            }
+
+            try {
+                return entry.task.get();
+            } catch (ExecutionException e) {
+                //never cache failures
+                entries.remove(key, entry);
+                Throwable cause = e.getCause();
+                if (cause instanceof InterruptedException && !owner) {
+                    //the poll running the query was aborted, run it again for this one
+                    continue;
+                }
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof InterruptedException) {
+                    throw (InterruptedException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException("Vault query failed", cause);
+            }
+        }
+    }
+
+    private void purgeExpired(long now) {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            if (it.next().isExpired(now, ttl)) {
+                it.remove();
+            }
+        }
+        LOG.log(Level.FINE, "Vault poll cache hits: {0}, misses: {1}", new Object[]{hits.get(), misses.get()});
+    }
+
+    /**
+     * Forgets the results of finished queries, so the next poll of every key
+     * asks vault again.
+     */
+    void clear() {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            if (it.next().completedAt != 0) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of polls that reused a shared query.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of polls that ran a vault query.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
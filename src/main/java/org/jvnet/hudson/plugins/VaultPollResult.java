@@ -0,0 +1,60 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.Serializable;
+
+/**
+ * Outcome of a vault history query made while polling: the number of
+ * history rows that were found and the newest folder version among them.
+ */
+public final class VaultPollResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int changeCount;
+    private final Long newestVersion;
+    private final VaultCommandStats stats;
+
+    public VaultPollResult(int changeCount, Long newestVersion) {
+        this(changeCount, newestVersion, null);
+    }
+
+    public VaultPollResult(int changeCount, Long newestVersion, VaultCommandStats stats) {
+        this.changeCount = changeCount;
+        this.newestVersion = newestVersion;
+        this.stats = stats;
+    }
+
+    public int getChangeCount() {
+        return changeCount;
+    }
+
+    /**
+     * @return the newest folder version seen, or null if it is not known.
+     */
+    public Long getNewestVersion() {
+        return newestVersion;
+    }
+
+    /**
+     * @return the measurements of the vault command that produced this
+     * result, or null if no command was run.
+     */
+    public VaultCommandStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @param lastVersion the last built folder version, or null if unknown.
+     */
+    public boolean hasChanges(Long lastVersion) {
+        if (changeCount == 0) {
+            return false;
+        }
+        return lastVersion == null || newestVersion == null || newestVersion > lastVersion;
+    }
+
+    @Override
+    public String toString() {
+        return "changes: " + changeCount + ", newest version: " + newestVersion;
+    }
+}
@@ -0,0 +1,78 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.model.TaskListener;
+import java.util.Random;
+
+/**
+ * Decides whether a failed vault command is run again, and waits before it
+ * is. Only commands killed for running too long are run again, as a client
+ * hanging on a network problem may well succeed the next time. Commands
+ * exiting with an error, such as for bad credentials or a wrong path, are
+ * not, since running them again would fail the same way and repeated bad
+ * logins may lock the account. The wait doubles after each attempt, up to
+ * a minute, and is picked at random between half and all of that so that
+ * commands failing together do not retry together.
+ */
+final class VaultRetry {
+
+    /**
+     * Wait before the first retry, in milliseconds.
+     */
+    private static final long BACKOFF = Integer.getInteger(VaultRetry.class.getName() + ".backoffMillis", 2000);
+    private static final long MAX_BACKOFF = 60 * 1000L;
+    private static final Random RANDOM = new Random();
+
+    private final int maxRetries;
+    private int retries;
+    private int timeouts;
+
+    /**
+     * @param maxRetries how many times a command may be run again.
+     */
+    VaultRetry(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * Waits before the command is run again, if it timed out and has
+     * retries left.
+     *
+     * @param stats the measurements of the attempt just made.
+     * @return whether to run the command again.
+     */
+    boolean again(VaultCommandStats stats, TaskListener listener) throws InterruptedException {
+        if (stats.getTimeouts() > 0) {
+            timeouts++;
+        }
+        if (stats.getExitCode() == 0 || stats.getTimeouts() == 0 || retries >= maxRetries) {
+            return false;
+        }
+        retries++;
+        long backoff = Math.min(MAX_BACKOFF, BACKOFF << Math.min(retries - 1, 16));
+        long wait;
+        synchronized (RANDOM) {
+            wait = backoff / 2 + (long) (RANDOM.nextDouble() * (backoff / 2));
+        }
+        listener.getLogger().println("Vault " + stats.getCommand() + " " + stats.getRepositoryPath()
+                + " timed out after " + stats.getWallMillis() + " ms, retrying in " + wait + " ms (retry " + retries
+                + " of " + maxRetries + ")");
+        Thread.sleep(wait);
+        return true;
+    }
+
+    /**
+     * Reports the retries and timeouts of the command, if any.
+     *
+     * @param stats the measurements of the last attempt.
+     * @return the measurements of the last attempt, with the retries and
+     * timeouts of all attempts.
+     */
+    VaultCommandStats complete(VaultCommandStats stats, TaskListener listener) {
+        if (retries > 0 || timeouts > 0) {
+            listener.getLogger().println("Vault " + stats.getCommand() + " " + stats.getRepositoryPath()
+                    + (stats.getExitCode() == 0 ? " succeeded" : " failed") + " after " + retries + " retries and "
+                    + timeouts + " timeouts");
+        }
+        return stats.withAttempts(retries, timeouts);
+    }
+}
@@ -9,10 +9,14 @@ import hudson.CopyOnWrite;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.scm.ChangeLogParser;
@@ -28,17 +32,16 @@ import hudson.util.Secret;
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.ServletException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import net.sf.json.JSONObject;
+import org.apache.commons.lang.time.FastDateFormat;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
 import org.jvnet.hudson.plugins.VaultSCMChangeLogSet.*;
 
 public class VaultSCM extends SCM {
@@ -49,6 +52,12 @@ public class VaultSCM extends SCM {
 
         @CopyOnWrite
         private volatile VaultSCMInstallation[] installations = new VaultSCMInstallation[0];
+        private String userMappings; //lines of vaultUser=jenkinsIdOrEmail
+        private int concurrentGetLimit; //GETs per server at the same time, 0 for no limit
+        private int concurrentHistoryLimit; //history queries per server at the same time, 0 for no limit
+        private int getTimeoutMinutes; //time a GET may run before it is killed, 0 for no limit
+        private int historyTimeoutMinutes; //time other commands may run before they are killed, 0 for no limit
+        private int commandRetries; //times a command that timed out is run again
 
         /**
          * Constructor for a new VaultSCMDescriptor.
@@ -56,6 +65,109 @@ public class VaultSCM extends SCM {
         protected VaultSCMDescriptor() {
             super(VaultSCM.class, null);
             load();
+            VaultUserResolver.INSTANCE.setMappings(userMappings);
+        }
+
+        public String getUserMappings() {
+            return userMappings;
+        }
+
+        public void setUserMappings(String userMappings) {
+            this.userMappings = Util.fixEmptyAndTrim(userMappings);
+            VaultUserResolver.INSTANCE.setMappings(this.userMappings);
+            save();
+        }
+
+        public int getConcurrentGetLimit() {
+            return concurrentGetLimit;
+        }
+
+        public void setConcurrentGetLimit(int concurrentGetLimit) {
+            this.concurrentGetLimit = concurrentGetLimit;
+        }
+
+        public int getConcurrentHistoryLimit() {
+            return concurrentHistoryLimit;
+        }
+
+        public void setConcurrentHistoryLimit(int concurrentHistoryLimit) {
+            this.concurrentHistoryLimit = concurrentHistoryLimit;
+        }
+
+        /**
+         * @return the limit on concurrent commands of the kind per server,
+         * or 0 for no limit.
+         */
+        public int getConcurrencyLimit(VaultServerLimiter.Operation operation) {
+            return operation == VaultServerLimiter.Operation.GET ? concurrentGetLimit : concurrentHistoryLimit;
+        }
+
+        public VaultServerLimiter getServerLimiter() {
+            return VaultServerLimiter.INSTANCE;
+        }
+
+        public int getGetTimeoutMinutes() {
+            return getTimeoutMinutes;
+        }
+
+        public void setGetTimeoutMinutes(int getTimeoutMinutes) {
+            this.getTimeoutMinutes = getTimeoutMinutes;
+        }
+
+        public int getHistoryTimeoutMinutes() {
+            return historyTimeoutMinutes;
+        }
+
+        public void setHistoryTimeoutMinutes(int historyTimeoutMinutes) {
+            this.historyTimeoutMinutes = historyTimeoutMinutes;
+        }
+
+        /**
+         * @return how long a command of the kind may run before it is
+         * killed, in milliseconds, or 0 for no limit.
+         */
+        public long getTimeoutMillis(VaultServerLimiter.Operation operation) {
+            int minutes = operation == VaultServerLimiter.Operation.GET ? getTimeoutMinutes : historyTimeoutMinutes;
+            return minutes * 60L * 1000;
+        }
+
+        public int getCommandRetries() {
+            return commandRetries;
+        }
+
+        public void setCommandRetries(int commandRetries) {
+            this.commandRetries = commandRetries;
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            concurrentGetLimit = Math.max(0, json.optInt("concurrentGetLimit", 0));
+            concurrentHistoryLimit = Math.max(0, json.optInt("concurrentHistoryLimit", 0));
+            getTimeoutMinutes = Math.max(0, json.optInt("getTimeoutMinutes", 0));
+            historyTimeoutMinutes = Math.max(0, json.optInt("historyTimeoutMinutes", 0));
+            commandRetries = Math.max(0, json.optInt("commandRetries", 0));
+            setUserMappings(json.optString("userMappings"));
+            return true;
+        }
+
+        public FormValidation doCheckConcurrentGetLimit(@QueryParameter String value) throws IOException, ServletException {
+            return Util.fixEmptyAndTrim(value) == null ? FormValidation.ok() : FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckConcurrentHistoryLimit(@QueryParameter String value) throws IOException, ServletException {
+            return Util.fixEmptyAndTrim(value) == null ? FormValidation.ok() : FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckGetTimeoutMinutes(@QueryParameter String value) throws IOException, ServletException {
+            return Util.fixEmptyAndTrim(value) == null ? FormValidation.ok() : FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckHistoryTimeoutMinutes(@QueryParameter String value) throws IOException, ServletException {
+            return Util.fixEmptyAndTrim(value) == null ? FormValidation.ok() : FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckCommandRetries(@QueryParameter String value) throws IOException, ServletException {
+            return Util.fixEmptyAndTrim(value) == null ? FormValidation.ok() : FormValidation.validateNonNegativeInteger(value);
         }
 
         public VaultSCMInstallation[] getInstallations() {
@@ -64,6 +176,7 @@ public class VaultSCM extends SCM {
 
         public void setInstallations(VaultSCMInstallation... antInstallations) {
             this.installations = antInstallations;
+            VaultExecutableCache.INSTANCE.invalidateAll();
             save();
         }
 
@@ -85,6 +198,23 @@ public class VaultSCM extends SCM {
             VaultSCM scm = req.bindJSON(VaultSCM.class, formData);
             return scm;
         }
+        public FormValidation doCheckLocalDirectory(@QueryParameter String value) throws IOException, ServletException {
+            return VaultSCMLocation.isRelativeDirectory(value) ? FormValidation.ok()
+                    : FormValidation.error("The subdirectory must be relative to the workspace and stay inside it.");
+        }
+
+        public FormValidation doCheckParallelGetLimit(@QueryParameter String value) throws IOException, ServletException {
+            return Util.fixEmptyAndTrim(value) == null ? FormValidation.ok() : FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckFirstBuildHistoryLimit(@QueryParameter String value) throws IOException, ServletException {
+            return Util.fixEmptyAndTrim(value) == null ? FormValidation.ok() : FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckFirstBuildHistoryDays(@QueryParameter String value) throws IOException, ServletException {
+            return Util.fixEmptyAndTrim(value) == null ? FormValidation.ok() : FormValidation.validateNonNegativeInteger(value);
+        }
+
         private final static List<String> MERGE_OPTIONS = Arrays.asList("automatic", "overwrite", "later");
 
         public List<String> getMergeOptions() {
@@ -96,6 +226,22 @@ public class VaultSCM extends SCM {
             return FILETIME_OPTIONS;
         }
 
+        public VaultPollCoordinator getPollCoordinator() {
+            return VaultPollCoordinator.INSTANCE;
+        }
+
+        public VaultSessionManager getSessionManager() {
+            return VaultSessionManager.INSTANCE;
+        }
+
+        public VaultServerMetrics getServerMetrics() {
+            return VaultServerMetrics.INSTANCE;
+        }
+
+        public VaultFileCache getFileCache() {
+            return VaultFileCache.INSTANCE;
+        }
+
         public FormValidation doCheckServerName(@QueryParameter String value) throws IOException, ServletException {
             return FormValidation.validateRequired(value);
         }
@@ -125,6 +271,137 @@ public class VaultSCM extends SCM {
     private String fileTime;
     private Boolean makeWritableEnabled;
     private Boolean verboseEnabled;
+    private Boolean probePollingEnabled; //poll using the newest history row only
+    private Boolean workspaceFreePollingEnabled; //poll without a workspace
+    private String pollingNode; //label of the node to poll on when no workspace is used, empty for the controller
+    private Boolean rememberLoginEnabled; //log in once per node and reuse the remembered login
+    private Boolean skipUpToDateGetEnabled; //skip GET when the workspace already has the folder version
+    private int parallelGetLimit; //concurrent GETs of the immediate subfolders, 0 or 1 for a single GET
+    private String includedPaths; //folders below path to fetch, empty for all
+    private String excludedPaths; //folders below path not to fetch
+    private List<VaultSCMLocation> additionalLocations; //further paths, each with its own subdirectory
+    private int firstBuildHistoryLimit; //changes recorded by the first build, 0 for the default
+    private int firstBuildHistoryDays; //age of the changes recorded by the first build, 0 for any age
+    private Boolean mirrorEnabled; //fill workspaces from a mirror kept on each node
+    private Boolean getListingEnabled; //keep the files fetched in a listing beside the build log
+
+    public Boolean getMirrorEnabled() {
+        return mirrorEnabled;
+    }
+
+    public void setMirrorEnabled(Boolean mirrorEnabled) {
+        this.mirrorEnabled = mirrorEnabled;
+    }
+
+    public Boolean getGetListingEnabled() {
+        return getListingEnabled;
+    }
+
+    public void setGetListingEnabled(Boolean getListingEnabled) {
+        this.getListingEnabled = getListingEnabled;
+    }
+
+    public int getFirstBuildHistoryLimit() {
+        return firstBuildHistoryLimit;
+    }
+
+    public void setFirstBuildHistoryLimit(int firstBuildHistoryLimit) {
+        this.firstBuildHistoryLimit = firstBuildHistoryLimit;
+    }
+
+    public int getFirstBuildHistoryDays() {
+        return firstBuildHistoryDays;
+    }
+
+    public void setFirstBuildHistoryDays(int firstBuildHistoryDays) {
+        this.firstBuildHistoryDays = firstBuildHistoryDays;
+    }
+
+    public String getIncludedPaths() {
+        return includedPaths;
+    }
+
+    public void setIncludedPaths(String includedPaths) {
+        this.includedPaths = includedPaths;
+    }
+
+    public String getExcludedPaths() {
+        return excludedPaths;
+    }
+
+    public void setExcludedPaths(String excludedPaths) {
+        this.excludedPaths = excludedPaths;
+    }
+
+    public List<VaultSCMLocation> getAdditionalLocations() {
+        return additionalLocations == null ? Collections.<VaultSCMLocation>emptyList() : additionalLocations;
+    }
+
+    public void setAdditionalLocations(List<VaultSCMLocation> additionalLocations) {
+        this.additionalLocations = additionalLocations;
+    }
+
+    /**
+     * @return the path followed by the additional paths, in checkout order.
+     */
+    public List<VaultSCMLocation> getLocations() {
+        List<VaultSCMLocation> locations = new ArrayList<VaultSCMLocation>();
+        locations.add(new VaultSCMLocation(path, null, includedPaths, excludedPaths));
+        for (VaultSCMLocation location : getAdditionalLocations()) {
+            if (location.getPath() != null) {
+                locations.add(location);
+            }
+        }
+        return locations;
+    }
+
+    public int getParallelGetLimit() {
+        return parallelGetLimit;
+    }
+
+    public void setParallelGetLimit(int parallelGetLimit) {
+        this.parallelGetLimit = parallelGetLimit;
+    }
+
+    public Boolean getSkipUpToDateGetEnabled() {
+        return skipUpToDateGetEnabled;
+    }
+
+    public void setSkipUpToDateGetEnabled(Boolean skipUpToDateGetEnabled) {
+        this.skipUpToDateGetEnabled = skipUpToDateGetEnabled;
+    }
+
+    public Boolean getRememberLoginEnabled() {
+        return rememberLoginEnabled;
+    }
+
+    public void setRememberLoginEnabled(Boolean rememberLoginEnabled) {
+        this.rememberLoginEnabled = rememberLoginEnabled;
+    }
+
+    public Boolean getWorkspaceFreePollingEnabled() {
+        return workspaceFreePollingEnabled;
+    }
+
+    public void setWorkspaceFreePollingEnabled(Boolean workspaceFreePollingEnabled) {
+        this.workspaceFreePollingEnabled = workspaceFreePollingEnabled;
+    }
+
+    public String getPollingNode() {
+        return pollingNode;
+    }
+
+    public void setPollingNode(String pollingNode) {
+        this.pollingNode = pollingNode;
+    }
+
+    public Boolean getProbePollingEnabled() {
+        return probePollingEnabled;
+    }
+
+    public void setProbePollingEnabled(Boolean probePollingEnabled) {
+        this.probePollingEnabled = probePollingEnabled;
+    }
 
     public Boolean getMakeWritableEnabled() {
         return makeWritableEnabled;
@@ -235,15 +512,45 @@ public class VaultSCM extends SCM {
      */
     @Extension
     public static final VaultSCMDescriptor DESCRIPTOR = new VaultSCMDescriptor();
-    //format dates for vault client
+    //records what was last fetched into a workspace
+    private static final String WORKSPACE_MARKER = ".vaultscm";
+    //records the folder version a node mirror was fetched at
+    private static final String MIRROR_MARKER = ".vaultmirror";
+    //mirror updates in progress, by node and mirror folder, dropped once no build holds them
+    private static final Map<String, MirrorLock> MIRROR_LOCKS = new HashMap<String, MirrorLock>();
+    //changes recorded by the first build unless configured otherwise
+    private static final int DEFAULT_FIRST_BUILD_HISTORY_LIMIT = 100;
+    //rows fetched by each VERSIONHISTORY command of a changelog
+    private static final int HISTORY_PAGE_SIZE = Integer.getInteger(VaultSCM.class.getName() + ".historyPageSize", 1000);
+    //format dates for vault client, safe to share between concurrent polls and builds
+    private static final FastDateFormat VAULT_DATE_FORMAT = FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss",
+            TimeZone.getDefault());
+    /**
+     * @deprecated not safe for use by several threads at once; use
+     * {@link #formatVaultDate(Date)}.
+     */
+    @Deprecated
     public static final SimpleDateFormat VAULT_DATETIME_FORMATTER = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
 
+    /**
+     * Formats a date for the -begindate and -enddate options of the vault
+     * client, in the time zone of the Jenkins controller.
+     */
+    public static String formatVaultDate(Date date) {
+        return VAULT_DATE_FORMAT.format(date);
+    }
+
     @DataBoundConstructor
     public VaultSCM(String serverName, String path, String userName,
             String password, String repositoryName, String vaultName,
             Boolean sslEnabled, Boolean useNonWorkingFolder, String merge,
             String fileTime, Boolean makeWritableEnabled,
-            Boolean verboseEnabled) {
+            Boolean verboseEnabled, Boolean probePollingEnabled,
+            Boolean workspaceFreePollingEnabled, String pollingNode,
+            Boolean rememberLoginEnabled, Boolean skipUpToDateGetEnabled,
+            int parallelGetLimit, String includedPaths, String excludedPaths,
+            List<VaultSCMLocation> additionalLocations, int firstBuildHistoryLimit,
+            int firstBuildHistoryDays, Boolean mirrorEnabled, Boolean getListingEnabled) {
         this.serverName = serverName;
         this.userName = userName;
         this.password = Secret.fromString(password);
@@ -256,6 +563,19 @@ public class VaultSCM extends SCM {
         this.fileTime = (fileTime.isEmpty() || fileTime == null) ? "modification" : fileTime;
         this.makeWritableEnabled = makeWritableEnabled;
         this.verboseEnabled = verboseEnabled;
+        this.probePollingEnabled = probePollingEnabled;
+        this.workspaceFreePollingEnabled = workspaceFreePollingEnabled;
+        this.pollingNode = Util.fixEmptyAndTrim(pollingNode);
+        this.rememberLoginEnabled = rememberLoginEnabled;
+        this.skipUpToDateGetEnabled = skipUpToDateGetEnabled;
+        this.parallelGetLimit = parallelGetLimit;
+        this.includedPaths = Util.fixEmptyAndTrim(includedPaths);
+        this.excludedPaths = Util.fixEmptyAndTrim(excludedPaths);
+        this.additionalLocations = additionalLocations;
+        this.firstBuildHistoryLimit = firstBuildHistoryLimit;
+        this.firstBuildHistoryDays = firstBuildHistoryDays;
+        this.mirrorEnabled = mirrorEnabled;
+        this.getListingEnabled = getListingEnabled;
 
     }
 
@@ -269,57 +589,117 @@ public class VaultSCM extends SCM {
             Launcher launcher, TaskListener listener) throws IOException,
             InterruptedException {
 
-        VaultSCMRevisionState scmRevisionState = new VaultSCMRevisionState();
+        //checkout records the folder versions it fetched
+        VaultSCMRevisionState scmRevisionState = build.getAction(VaultSCMRevisionState.class);
+        if (scmRevisionState != null) {
+            return scmRevisionState;
+        }
+
+        scmRevisionState = new VaultSCMRevisionState();
         final Date lastBuildDate = build.getTime();
         scmRevisionState.setDate(lastBuildDate);
 
         return scmRevisionState;
     }
 
+    @Override
+    public boolean requiresWorkspaceForPolling() {
+        return !Boolean.TRUE.equals(workspaceFreePollingEnabled);
+    }
+
+    /**
+     * Picks the node that polls when no workspace is used: the controller, or
+     * an online node carrying the configured label.
+     *
+     * @return null if no node with the label is online.
+     */
+    private Node findPollingNode() {
+        Hudson hudson = Hudson.getInstance();
+        if (pollingNode == null) {
+            return hudson;
+        }
+        Label label = hudson.getLabel(pollingNode);
+        for (Node node : label.getNodes()) {
+            Computer computer = node.toComputer();
+            if (computer != null && computer.isOnline()) {
+                return node;
+            }
+        }
+        return null;
+    }
+
     @Override
     /* 
      */
     protected PollingResult compareRemoteRevisionWith(
             AbstractProject<?, ?> project, Launcher launcher,
-            FilePath workspace, TaskListener listener, SCMRevisionState baseline)
+            final FilePath workspace, final TaskListener listener, SCMRevisionState baseline)
             throws IOException, InterruptedException {
 
-        Date lastBuild = ((VaultSCMRevisionState) baseline).getDate();
-        LOG.log(Level.INFO, "Last Build Date set to {0}", lastBuild.toString());
-        Date now = new Date();
-        File temporaryFile = File.createTempFile("changes", ".txt");
-        int countChanges = determineChangeCount(launcher, workspace, listener, lastBuild, now, temporaryFile);
-        temporaryFile.delete();
-        if (countChanges == 0) {
-            return PollingResult.NO_CHANGES;
+        final Node node;
+        final Launcher nodeLauncher;
+        if (workspace == null) {
+            node = findPollingNode();
+            if (node == null) {
+                listener.error("No online node with label " + pollingNode + " to poll vault on");
+                return PollingResult.NO_CHANGES;
+            }
+            nodeLauncher = node.createLauncher(listener);
         } else {
-            return PollingResult.BUILD_NOW;
+            node = workspaceToNode(workspace);
+            nodeLauncher = launcher;
+        }
+
+        VaultSCMRevisionState state = (VaultSCMRevisionState) baseline;
+        final Date lastBuild = state.getDate();
+        LOG.log(Level.INFO, "Last Build Date set to {0}", lastBuild.toString());
+
+        final boolean probe = Boolean.TRUE.equals(probePollingEnabled);
+        for (VaultSCMLocation location : getLocations()) {
+            final String repositoryPath = location.getPath();
+            final Long lastVersion = state.getRevision(repositoryPath);
+            String baselineKey = (probe ? "probe:" : "count:")
+                    + (lastVersion != null ? "version:" + lastVersion : "date:" + lastBuild.getTime());
+
+            //jobs polling the same path with the same baseline share one vault query
+            VaultPollResult result = VaultPollCoordinator.INSTANCE.poll(
+                    VaultPollCoordinator.key(serverName, repositoryName, userName, getPassword(),
+                            Boolean.TRUE.equals(sslEnabled), vaultName, repositoryPath, baselineKey),
+                    new VaultPollCoordinator.Query() {
+                        public VaultPollResult run() throws IOException, InterruptedException {
+                            return queryHistory(node, nodeLauncher, workspace, listener, repositoryPath,
+                                    probe, lastVersion, lastBuild, null);
+                        }
+                    });
+            listener.getLogger().println("Vault poll result for " + repositoryPath + ": " + result);
+
+            if (result.hasChanges(lastVersion)) {
+                return PollingResult.BUILD_NOW;
+            }
         }
+        return PollingResult.NO_CHANGES;
     }
 
     @Override
     public void buildEnvVars(AbstractBuild<?, ?> build, Map<String, String> env){
         super.buildEnvVars(build, env);
         String vaultFolderVersionName = "VAULT_FOLDER_VERSION";
-        if (build.getChangeSet() == null || build.getChangeSet().isEmptySet()) {
-            AbstractBuild<?, ?> previousBuild = build.getPreviousBuild();
-            if (previousBuild != null) {
-                buildEnvVars(previousBuild, env);
-            } else {
-                env.put(vaultFolderVersionName, "NOT_SET");
+        //checkout records the folder version on the build, older builds only have their changelog
+        for (AbstractBuild<?, ?> b = build; b != null; b = b.getPreviousBuild()) {
+            VaultSCMRevisionState state = b.getAction(VaultSCMRevisionState.class);
+            Long version = state == null ? null : state.getRevision(path);
+            if (version != null) {
+                env.put(vaultFolderVersionName, String.valueOf(version));
+                return;
+            }
+            if (b.getChangeSet() != null && !b.getChangeSet().isEmptySet()) {
+                @SuppressWarnings("unchecked")
+                ChangeLogSet<VaultSCMChangeLogSetEntry> cls = (ChangeLogSet<VaultSCMChangeLogSetEntry>) b.getChangeSet();
+                env.put(vaultFolderVersionName, cls.iterator().next().getVersion());
+                return;
             }
-                
-            return;
         }
-        
-        @SuppressWarnings("unchecked")
-        ChangeLogSet<VaultSCMChangeLogSetEntry> cls = (ChangeLogSet<VaultSCMChangeLogSetEntry>)build.getChangeSet();
-        Iterator<VaultSCMChangeLogSetEntry> it = cls.iterator();
-        if (it.hasNext()) {
-            VaultSCMChangeLogSetEntry entry = it.next();
-            env.put(vaultFolderVersionName, entry.getVersion());
-        } 
-
+        env.put(vaultFolderVersionName, "NOT_SET");
     }
 
     private boolean checkVaultPath(String path, Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
@@ -335,13 +715,17 @@ public class VaultSCM extends SCM {
         return true;
     }
 
-    private String getVaultPath(Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
+    private String getVaultPath(Node node, Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
 
         final String defaultPath = "C:\\Program Files\\SourceGear\\Vault Client\\vault.exe";
         final String defaultPathX86 = "C:\\Program Files (x86)\\SourceGear\\Vault Client\\vault.exe";
 
         VaultSCMInstallation installation = getVault();
-        String pathToVault;
+        String installationName = installation == null ? "" : installation.getName();
+        String pathToVault = VaultExecutableCache.INSTANCE.get(node, installationName);
+        if (pathToVault != null) {
+            return pathToVault;
+        }
 
         if (installation == null) {
             // Check the first default location for vault...
@@ -354,37 +738,56 @@ public class VaultSCM extends SCM {
                 return null;
             }
         } else {
-            installation = installation.forNode(Computer.currentComputer().getNode(), listener);
+            installation = installation.forNode(node == null ? Hudson.getInstance() : node, listener);
             pathToVault = installation.getVaultLocation();
             if (!checkVaultPath(pathToVault, launcher, listener)) {
                 listener.fatalError(pathToVault + " doesn't exist");
                 return null;
             }
         }
+        VaultExecutableCache.INSTANCE.put(node, installationName, pathToVault);
         return pathToVault;
     }
 
-    @Override
-    public boolean checkout(AbstractBuild<?, ?> build, Launcher launcher,
-            FilePath workspace, BuildListener listener, File changelogFile)
-            throws IOException, InterruptedException {
-        boolean returnValue;
-
-        String pathToVault = getVaultPath(launcher, listener);
-
-        if (pathToVault == null) {
-            return false;
+    /**
+     * Obtains the login remembered by the vault client on the node, when
+     * login reuse is enabled.
+     *
+     * @return null if the command has to pass its own credentials.
+     */
+    private VaultSessionManager.Session openSession(Node node, Launcher launcher, TaskListener listener,
+            String pathToVault) throws IOException, InterruptedException {
+        if (!Boolean.TRUE.equals(rememberLoginEnabled)) {
+            return null;
         }
+        String identity = serverName + '\n' + userName + '\n' + repositoryName + '\n' + sslEnabled
+                + '\n' + Util.getDigestOf(getPassword());
+        String nodeName = node == null ? "" : node.getNodeName();
+        return VaultSessionManager.INSTANCE.acquire(nodeName, serverName, identity, launcher, listener,
+                createVaultCommand(pathToVault, "REMEMBERLOGIN", null));
+    }
 
-        if (serverName != null) {
-            listener.getLogger().println("server: " + serverName);
-        }
-        //populate the GET command
+    /**
+     * Creates a vault command line with the connection options shared by
+     * every command.
+     *
+     * @param session the remembered login to use, or null to pass the
+     * credentials on the command line.
+     */
+    private ArgumentListBuilder createVaultCommand(String pathToVault, String command,
+            VaultSessionManager.Session session) {
         //in some cases username, host and password can be empty e.g. if rememberlogin is used to store login data
         ArgumentListBuilder argBuildr = new ArgumentListBuilder();
-
         argBuildr.add(pathToVault);
-        argBuildr.add("GET");
+        argBuildr.add(command);
+
+        if (!repositoryName.isEmpty()) {
+            argBuildr.add("-repository", repositoryName);
+        }
+
+        if (session != null) {
+            return argBuildr;
+        }
 
         if (!serverName.isEmpty()) {
             argBuildr.add("-host", serverName);
@@ -394,220 +797,814 @@ public class VaultSCM extends SCM {
             argBuildr.add("-user", userName);
         }
 
-        if (!Secret.toString(password)
-                .isEmpty()) {
+        if (!Secret.toString(password).isEmpty()) {
             argBuildr.add("-password");
             argBuildr.add(Secret.toString(password), true);
         }
 
-        if (!repositoryName.isEmpty()) {
-            argBuildr.add("-repository", repositoryName);
-        }
-
         if (this.sslEnabled) {
             argBuildr.add("-ssl");
         }
+        return argBuildr;
+    }
 
-        if (this.verboseEnabled) {
-            argBuildr.add("-verbose");
+    @Override
+    public boolean checkout(AbstractBuild<?, ?> build, Launcher launcher,
+            FilePath workspace, BuildListener listener, File changelogFile)
+            throws IOException, InterruptedException {
+        boolean returnValue;
+
+        String pathToVault = getVaultPath(build.getBuiltOn(), launcher, listener);
+
+        if (pathToVault == null) {
+            return false;
         }
 
-        if (this.makeWritableEnabled) {
-            argBuildr.add("-makewritable");
+        if (serverName != null) {
+            listener.getLogger().println("server: " + serverName);
+        }
+        List<VaultSCMLocation> locations = getLocations();
+        VaultMetricsAction metrics = build.getAction(VaultMetricsAction.class);
+        if (metrics == null) {
+            metrics = new VaultMetricsAction();
+            build.addAction(metrics);
         }
 
-        argBuildr.add(
-                "-merge", merge);
-        argBuildr.add(
-                "-setfiletime", fileTime);
-        if (this.useNonWorkingFolder) {
-            argBuildr.add(
-                    "-nonworkingfolder", workspace.getRemote());
-        } else {
-            argBuildr.add(
-                    "-workingfolder", workspace.getRemote());
+        //remember the folder versions before fetching, so later changes are never lost
+        Map<String, Long> currentVersions = new HashMap<String, Long>();
+        for (VaultSCMLocation location : locations) {
+            try {
+                Long currentVersion = queryHistory(build.getBuiltOn(), launcher, workspace, listener,
+                        location.getPath(), true, null, null, metrics).getNewestVersion();
+                if (currentVersion != null) {
+                    currentVersions.put(location.getPath(), currentVersion);
+                }
+            } catch (IOException e) {
+                listener.getLogger().println("Unable to determine the folder version of "
+                        + location.getPath() + ": " + e.getMessage());
+            }
+        }
+
+        //the marker is only kept in workspaces of jobs that skip up to date GETs or use a mirror
+        FilePath marker = Boolean.TRUE.equals(skipUpToDateGetEnabled) || Boolean.TRUE.equals(mirrorEnabled)
+                ? workspace.child(WORKSPACE_MARKER) : null;
+        Set<String> upToDate = new HashSet<String>();
+        if (marker != null && marker.exists()) {
+            upToDate.addAll(Arrays.asList(marker.readToString().split("\n")));
+            marker.delete();
+        }
+
+        int cmdResult = 0;
+        StringBuilder fetched = new StringBuilder();
+        OutputStream listing = null;
+        if (Boolean.TRUE.equals(getListingEnabled)) {
+            listing = new GZIPOutputStream(new FileOutputStream(VaultGetListingAction.getFile(build)));
+            if (build.getAction(VaultGetListingAction.class) == null) {
+                build.addAction(new VaultGetListingAction());
+            }
+        }
+        try {
+            for (VaultSCMLocation location : locations) {
+                Long currentVersion = currentVersions.get(location.getPath());
+                String description = currentVersion == null ? null : describeWorkspace(location, currentVersion);
+                if (description != null && upToDate.contains(description)) {
+                    listener.getLogger().println(location.getPath() + " is already at folder version "
+                            + currentVersion + ", skipping GET.");
+                } else if (Boolean.TRUE.equals(mirrorEnabled)) {
+                    cmdResult = getFilesFromMirror(build, launcher, workspace, listener, pathToVault, location,
+                            currentVersion, listing, metrics);
+                    if (cmdResult != 0) {
+                        break;
+                    }
+                } else {
+                    cmdResult = getFiles(build, launcher, workspace, listener, pathToVault, location,
+                            location.getLocalFolder(workspace), useNonWorkingFolder, null, listing, metrics);
+                    if (cmdResult != 0) {
+                        break;
+                    }
+                }
+                if (description != null) {
+                    fetched.append(description).append('\n');
+                }
+            }
+        } finally {
+            if (listing != null) {
+                listing.close();
+            }
         }
-        argBuildr.add(
-                this.path);
 
-        int cmdResult = launcher.launch().cmds(argBuildr).envs(build.getEnvironment(TaskListener.NULL)).stdout(listener.getLogger()).pwd(workspace).join();
         if (cmdResult
                 == 0) {
+            if (marker != null) {
+                marker.write(fetched.toString(), "UTF-8");
+            }
+
             final Run<?, ?> lastBuild = build.getPreviousBuild();
             final Date lastBuildDate;
+            VaultSCMRevisionState lastState = null;
+            Date now = new Date(); //defaults to current
+            int historyLimit = 0;
 
             if (lastBuild == null) {
-                lastBuildDate = new Date();
-                lastBuildDate.setTime(0); // default to January 1, 1970
-                listener.getLogger().print("Never been built.");
+                //the whole history of an old repository is slow to fetch and of little use
+                historyLimit = firstBuildHistoryLimit > 0 ? firstBuildHistoryLimit : DEFAULT_FIRST_BUILD_HISTORY_LIMIT;
+                lastBuildDate = new Date(firstBuildHistoryDays > 0
+                        ? now.getTime() - firstBuildHistoryDays * 24L * 60 * 60 * 1000 : 0);
+                listener.getLogger().println("Never been built, recording at most " + historyLimit + " changes"
+                        + (firstBuildHistoryDays > 0 ? " from the last " + firstBuildHistoryDays + " days." : "."));
             } else {
                 lastBuildDate = lastBuild.getTimestamp().getTime();
+                lastState = lastBuild.getAction(VaultSCMRevisionState.class);
             }
 
-            Date now = new Date(); //defaults to current
+            returnValue = captureChangeLog(build.getBuiltOn(), launcher, workspace, listener, locations,
+                    lastState, currentVersions, lastBuildDate, now, historyLimit, changelogFile, metrics);
 
-            returnValue = captureChangeLog(launcher, workspace, listener, lastBuildDate, now, changelogFile);
+            VaultSCMRevisionState scmRevisionState = new VaultSCMRevisionState();
+            scmRevisionState.setDate(build.getTime());
+            for (Map.Entry<String, Long> version : currentVersions.entrySet()) {
+                scmRevisionState.AddRevision(version.getKey(), version.getValue());
+            }
+            build.addAction(scmRevisionState);
         } else {
             returnValue = false;
         }
 
+        listener.getLogger().println("Vault commands: " + metrics.getCommands().size() + ", "
+                + metrics.getTotalWallMillis() + " ms, " + metrics.getTotalOutputBytes() + " bytes of output, "
+                + metrics.getRetries() + " retries, " + metrics.getTimeouts() + " timeouts");
         listener.getLogger()
                 .println("Checkout completed.");
         return returnValue;
     }
 
-    @Override
-    public ChangeLogParser createChangeLogParser() {
-        return new VaultSCMChangeLogParser();
-    }
+    /**
+     * Brings the mirror of a location kept on the build's node up to the
+     * folder version, then synchronizes the workspace folder of the location
+     * with it. The mirror is fetched only when it is not already at the
+     * folder version, after which files deleted in vault are removed from it.
+     * A location fetched by a single command is fetched with GETVERSION at
+     * the folder version, while a location split over several GETs fetches
+     * the newest files. Either way the mirror is only marked as being at the
+     * folder version if the folder has not changed while it was fetched and
+     * listed.
+     *
+     * @param currentVersion the folder version to build, or null if unknown,
+     * in which case the mirror is always fetched.
+     * @param listing where to list the files fetched, or null.
+     * @return the exit code of the vault client.
+     */
+    private int getFilesFromMirror(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace,
+            BuildListener listener, String pathToVault, VaultSCMLocation location, Long currentVersion,
+            OutputStream listing, VaultMetricsAction metrics) throws IOException, InterruptedException {
+        Node node = build.getBuiltOn();
+        FilePath root = node == null ? null : node.getRootPath();
+        FilePath localFolder = location.getLocalFolder(workspace);
+        if (root == null) {
+            listener.getLogger().println("No mirror available on this node, fetching " + location.getPath() + " directly.");
+            return getFiles(build, launcher, workspace, listener, pathToVault, location, localFolder,
+                    useNonWorkingFolder, null, listing, metrics);
+        }
 
-    private boolean captureChangeLog(Launcher launcher, FilePath workspace,
-            BuildListener listener, Date lastBuildDate, Date currentDate, File changelogFile) throws IOException, InterruptedException {
+        String key = Util.getDigestOf(serverName + '|' + repositoryName + '|' + location.getPath() + '|'
+                + location.getIncludes() + '|' + location.getExcludes());
+        FilePath mirror = root.child("vault-mirror").child(key);
+        String lockKey = node.getNodeName() + '\n' + mirror.getRemote();
+        MirrorLock lock = lockMirror(lockKey, listener, mirror);
+        try {
+            FilePath marker = mirror.child(MIRROR_MARKER);
+            String mirrored = marker.exists() ? marker.readToString().trim() : null;
+            Set<String> repositoryFiles = null;
+            if (currentVersion != null && String.valueOf(currentVersion).equals(mirrored)) {
+                listener.getLogger().println("Mirror " + mirror.getRemote() + " is already at folder version "
+                        + currentVersion + ".");
+            } else {
+                marker.delete();
+                boolean pinned = currentVersion != null && parallelGetLimit <= 1 && location.getFilter().isEmpty();
+                int cmdResult = getFiles(build, launcher, workspace, listener, pathToVault, location, mirror,
+                        true, pinned ? currentVersion : null, listing, metrics);
+                if (cmdResult != 0) {
+                    return cmdResult;
+                }
+                //a non working folder GET leaves files deleted in vault behind
+                repositoryFiles = listFiles(build.getBuiltOn(), launcher, workspace, listener, pathToVault,
+                        location.getPath(), metrics);
+                if (repositoryFiles == null) {
+                    return -1;
+                }
+                if (currentVersion != null) {
+                    //the GET and the listing match the folder version only if the folder did not change meanwhile
+                    Long newestVersion = queryHistory(node, launcher, workspace, listener, location.getPath(),
+                            true, null, null, metrics).getNewestVersion();
+                    if (currentVersion.equals(newestVersion)) {
+                        marker.write(String.valueOf(currentVersion), "UTF-8");
+                    } else {
+                        listener.getLogger().println(location.getPath() + " changed while the mirror was fetched,"
+                                + " the next build fetches it again.");
+                    }
+                }
+            }
 
-        boolean result = true;
+            VaultMirrorSync.Result result = mirror.act(new VaultMirrorSync(localFolder,
+                    Collections.singleton(MIRROR_MARKER), repositoryFiles));
+            listener.getLogger().println("Synchronized " + location.getPath() + " from the mirror "
+                    + mirror.getRemote() + ": " + result.getCopied() + " files copied, " + result.getUnchanged()
+                    + " unchanged, " + result.getDeleted() + " deleted from the workspace, "
+                    + result.getPruned() + " deleted from the mirror");
+            return 0;
+        } finally {
+            unlockMirror(lockKey, lock);
+        }
+    }
 
-        String latestBuildDate = VAULT_DATETIME_FORMATTER.format(lastBuildDate);
+    /**
+     * A lock on a mirror, with the number of builds holding or waiting for
+     * it.
+     */
+    private static final class MirrorLock {
 
-        String today = (VAULT_DATETIME_FORMATTER.format(currentDate));
+        private final ReentrantLock lock = new ReentrantLock();
+        private int users;
+    }
 
-        String pathToVault = getVaultPath(launcher, listener);
+    private static MirrorLock lockMirror(String key, TaskListener listener, FilePath mirror)
+            throws InterruptedException {
+        MirrorLock lock;
+        synchronized (MIRROR_LOCKS) {
+            lock = MIRROR_LOCKS.get(key);
+            if (lock == null) {
+                lock = new MirrorLock();
+                MIRROR_LOCKS.put(key, lock);
+            }
+            lock.users++;
+        }
+        if (!lock.lock.tryLock()) {
+            listener.getLogger().println("Waiting for another build updating the mirror " + mirror.getRemote());
+            try {
+                lock.lock.lockInterruptibly();
+            } catch (InterruptedException e) {
+                release(key, lock);
+                throw e;
+            }
+        }
+        return lock;
+    }
 
-        if (pathToVault == null) {
-            return false;
+    private static void unlockMirror(String key, MirrorLock lock) {
+        lock.lock.unlock();
+        release(key, lock);
+    }
+
+    private static void release(String key, MirrorLock lock) {
+        synchronized (MIRROR_LOCKS) {
+            if (--lock.users == 0) {
+                MIRROR_LOCKS.remove(key);
+            }
         }
+    }
 
-        FileOutputStream os = new FileOutputStream(changelogFile);
+    /**
+     * Lists all files under a repository folder with a recursive LISTFOLDER.
+     *
+     * @return the paths of the files relative to the folder, or null if the
+     * listing failed.
+     */
+    private Set<String> listFiles(Node node, Launcher launcher, FilePath workspace, BuildListener listener,
+            String pathToVault, String repositoryPath, VaultMetricsAction metrics)
+            throws IOException, InterruptedException {
+        VaultSessionManager.Session session = openSession(node, launcher, listener, pathToVault);
+        ArgumentListBuilder argBuildr = createVaultCommand(pathToVault, "LISTFOLDER", session);
+        argBuildr.add(repositoryPath);
+        File folderListing = File.createTempFile("vault-listing", ".xml");
+        VaultCommandStats stats = null;
         try {
-            BufferedOutputStream bos = new BufferedOutputStream(os);
-            PrintWriter writer = new PrintWriter(new FileWriter(changelogFile));
+            VaultRetry retry = new VaultRetry(DESCRIPTOR.getCommandRetries());
+            do {
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(folderListing));
+                VaultServerLimiter.Permit permit = acquirePermit(VaultServerLimiter.Operation.HISTORY, listener, metrics);
+                try {
+                    stats = VaultCommandStats.launch("LISTFOLDER", repositoryPath,
+                            launcher.launch().cmds(argBuildr).envs(new String[0]).pwd(workspace), os,
+                            DESCRIPTOR.getTimeoutMillis(VaultServerLimiter.Operation.HISTORY));
+                } finally {
+                    permit.release();
+                    os.close();
+                }
+            } while (retry.again(stats, listener));
+            stats = retry.complete(stats, listener);
+            if (stats.getExitCode() != 0) {
+                record(metrics, stats);
+                listener.fatalError("Listing " + repositoryPath + " failed with exit code " + stats.getExitCode());
+                return null;
+            }
+            Set<String> files = new HashSet<String>();
+            InputStream in = new BufferedInputStream(new FileInputStream(folderListing));
             try {
+                VaultParallelGet.readFileTree(in, repositoryPath, files);
+            } finally {
+                in.close();
+            }
+            record(metrics, stats.withItems(files.size()));
+            return files;
+        } finally {
+            VaultSessionManager.INSTANCE.release(session, stats != null && stats.getExitCode() == 0);
+            folderListing.delete();
+        }
+    }
 
-                ArgumentListBuilder argBuildr = new ArgumentListBuilder();
-                argBuildr.add(pathToVault);
-                argBuildr.add("VERSIONHISTORY");
+    /**
+     * Runs vault GET for a location into a folder. The GET is split over
+     * several commands when a parallel GET limit or folder filters are set.
+     *
+     * @param localFolder where to fetch the location to.
+     * @param nonWorkingFolder fetch with -nonworkingfolder rather than
+     * -workingfolder.
+     * @param version the folder version to fetch with GETVERSION, which
+     * fetches to a non working folder, or null for the newest files. Only
+     * used when the location is fetched by a single command.
+     * @param listing where to list the files fetched rather than in the
+     * build log, or null to only count them.
+     * @return the exit code of the vault client.
+     */
+    private int getFiles(AbstractBuild<?, ?> build, Launcher launcher, final FilePath workspace,
+            final BuildListener listener, final String pathToVault, VaultSCMLocation location,
+            FilePath localFolder, final boolean nonWorkingFolder, Long version, OutputStream listing,
+            final VaultMetricsAction metrics) throws IOException, InterruptedException {
+
+        final VaultSessionManager.Session session = openSession(build.getBuiltOn(), launcher, listener, pathToVault);
+        VaultPathFilter filter = location.getFilter();
+        VaultGetOutput output = new VaultGetOutput(listener.getLogger(), listing, location.getPath());
+        int cmdResult = -1;
+        try {
+            if (parallelGetLimit > 1 || !filter.isEmpty()) {
+                VaultParallelGet parallelGet = new VaultParallelGet(launcher, workspace, listener,
+                        build.getEnvironment(TaskListener.NULL), new VaultParallelGet.Commands() {
+                    public ArgumentListBuilder listFolder(String repositoryPath) {
+                        ArgumentListBuilder argBuildr = createVaultCommand(pathToVault, "LISTFOLDER", session);
+                        argBuildr.add("-norecursive");
+                        argBuildr.add(repositoryPath);
+                        return argBuildr;
+                    }
+
+                    public ArgumentListBuilder get(List<String> repositoryPaths, FilePath localFolder) {
+                        return createGetCommand(pathToVault, session, localFolder, nonWorkingFolder, repositoryPaths);
+                    }
+
+                    public void completed(VaultCommandStats stats) {
+                        record(metrics, stats);
+                    }
+
+                    public VaultServerLimiter.Permit acquire(VaultServerLimiter.Operation operation)
+                            throws InterruptedException {
+                        return acquirePermit(operation, listener, metrics);
+                    }
+
+                    public long getTimeoutMillis(VaultServerLimiter.Operation operation) {
+                        return DESCRIPTOR.getTimeoutMillis(operation);
+                    }
+
+                    public VaultRetry retry() {
+                        return new VaultRetry(DESCRIPTOR.getCommandRetries());
+                    }
+                });
+                cmdResult = parallelGet.run(location.getPath(), localFolder, filter, Math.max(1, parallelGetLimit),
+                        output);
+            } else {
+                localFolder.mkdirs();
+                String command = version == null ? "GET" : "GETVERSION";
+                ArgumentListBuilder argBuildr = version == null
+                        ? createGetCommand(pathToVault, session, localFolder, nonWorkingFolder,
+                                Collections.singletonList(location.getPath()))
+                        : createGetVersionCommand(pathToVault, session, localFolder, version, location.getPath());
+                VaultCommandStats stats;
+                VaultRetry retry = new VaultRetry(DESCRIPTOR.getCommandRetries());
+                do {
+                    VaultServerLimiter.Permit permit = acquirePermit(VaultServerLimiter.Operation.GET, listener, metrics);
+                    try {
+                        stats = VaultCommandStats.launch(command, location.getPath(),
+                                launcher.launch().cmds(argBuildr).envs(build.getEnvironment(TaskListener.NULL)).pwd(workspace),
+                                output, DESCRIPTOR.getTimeoutMillis(VaultServerLimiter.Operation.GET));
+                    } finally {
+                        permit.release();
+                    }
+                } while (retry.again(stats, listener));
+                stats = retry.complete(stats, listener);
+                record(metrics, stats);
+                cmdResult = stats.getExitCode();
+            }
+            output.summarize();
+        } catch (IOException e) {
+            //the client may have gone from the node
+            VaultExecutableCache.INSTANCE.invalidate(build.getBuiltOn());
+            throw e;
+        } finally {
+            VaultSessionManager.INSTANCE.release(session, cmdResult == 0);
+        }
+        return cmdResult;
+    }
 
-                if (!serverName.isEmpty()) {
-                    argBuildr.add("-host", serverName);
-                }
+    /**
+     * Waits for the server's limit on concurrent commands of the kind.
+     *
+     * @param metrics the build metrics to add the wait to, or null when
+     * polling.
+     */
+    private VaultServerLimiter.Permit acquirePermit(VaultServerLimiter.Operation operation, TaskListener listener,
+            VaultMetricsAction metrics) throws InterruptedException {
+        VaultServerLimiter.Permit permit = VaultServerLimiter.INSTANCE.acquire(serverName, operation,
+                DESCRIPTOR.getConcurrencyLimit(operation), listener);
+        if (metrics != null) {
+            metrics.addQueueWait(permit.getWaitMillis());
+        }
+        return permit;
+    }
 
-                if (!userName.isEmpty()) {
-                    argBuildr.add("-user", userName);
-                }
+    /**
+     * Adds the measurements of a vault command to the per server totals and,
+     * during a checkout, to the build.
+     *
+     * @param metrics the build metrics, or null when polling.
+     */
+    private void record(VaultMetricsAction metrics, VaultCommandStats stats) {
+        VaultServerMetrics.INSTANCE.record(serverName, stats);
+        if (metrics != null) {
+            metrics.add(stats);
+        }
+    }
 
-                if (!Secret.toString(password).isEmpty()) {
-                    argBuildr.add("-password");
-                    argBuildr.add(Secret.toString(password), true);
-                }
+    /**
+     * Creates the GET command fetching the repository paths into a local
+     * folder.
+     */
+    private ArgumentListBuilder createGetCommand(String pathToVault, VaultSessionManager.Session session,
+            FilePath localFolder, boolean nonWorkingFolder, List<String> repositoryPaths) {
+        //populate the GET command
+        ArgumentListBuilder argBuildr = createVaultCommand(pathToVault, "GET", session);
 
-                if (!repositoryName.isEmpty()) {
-                    argBuildr.add("-repository", repositoryName);
-                }
+        if (this.verboseEnabled) {
+            argBuildr.add("-verbose");
+        }
 
-                if (this.sslEnabled) {
-                    argBuildr.add("-ssl");
-                }
+        if (this.makeWritableEnabled) {
+            argBuildr.add("-makewritable");
+        }
 
-                argBuildr.add("-enddate", today);
-                argBuildr.add("-begindate", latestBuildDate);
-                argBuildr.add(this.path);
+        argBuildr.add(
+                "-merge", merge);
+        argBuildr.add(
+                "-setfiletime", fileTime);
+        if (nonWorkingFolder) {
+            argBuildr.add(
+                    "-nonworkingfolder", localFolder.getRemote());
+        } else {
+            argBuildr.add(
+                    "-workingfolder", localFolder.getRemote());
+        }
+        for (String repositoryPath : repositoryPaths) {
+            argBuildr.add(repositoryPath);
+        }
+        return argBuildr;
+    }
 
-                int cmdResult = launcher.launch().cmds(argBuildr).envs(new String[0]).stdout(bos).pwd(workspace).join();
-                if (cmdResult != 0) {
-                    listener.fatalError("Changelog failed with exit code " + cmdResult);
-                    result = false;
-                }
+    /**
+     * Creates the GETVERSION command fetching a folder version of a
+     * repository path into a non working folder.
+     */
+    private ArgumentListBuilder createGetVersionCommand(String pathToVault, VaultSessionManager.Session session,
+            FilePath localFolder, long version, String repositoryPath) {
+        ArgumentListBuilder argBuildr = createVaultCommand(pathToVault, "GETVERSION", session);
 
+        if (this.verboseEnabled) {
+            argBuildr.add("-verbose");
+        }
 
-            } finally {
-                writer.close();
-                bos.close();
-            }
-        } finally {
-            os.close();
+        if (this.makeWritableEnabled) {
+            argBuildr.add("-makewritable");
         }
 
-        listener.getLogger().println("Changelog calculated successfully.");
-        listener.getLogger().println("Change log file: " + changelogFile.getAbsolutePath());
+        argBuildr.add("-merge", merge);
+        argBuildr.add("-setfiletime", fileTime);
+        argBuildr.add(String.valueOf(version));
+        argBuildr.add(repositoryPath);
+        argBuildr.add(localFolder.getRemote());
+        return argBuildr;
+    }
 
-        return result;
+    /**
+     * @return the line of the workspace marker recording that a location
+     * was fetched at the folder version.
+     */
+    private String describeWorkspace(VaultSCMLocation location, long folderVersion) {
+        return serverName + '|' + repositoryName + '|' + location.getPath() + '|'
+                + location.getLocalDirectory() + '|' + location.getIncludes() + '|'
+                + location.getExcludes() + '|' + folderVersion;
     }
 
-    private int determineChangeCount(Launcher launcher, FilePath workspace,
-            TaskListener listener, Date lastBuildDate, Date currentDate, File changelogFile) throws IOException, InterruptedException {
+    @Override
+    public ChangeLogParser createChangeLogParser() {
+        return new VaultSCMChangeLogParser();
+    }
 
-        int result = 0;
+    /**
+     * Writes the history of every location to the changelog file. The
+     * history is selected by version range when the folder versions are
+     * known, and by date otherwise. Locations whose folder version has not
+     * changed since the last build are not queried.
+     *
+     * When the folder version is known the history is fetched in pages of
+     * rows, newest first, and each page is written to the changelog as soon
+     * as it arrives.
+     *
+     * @param historyLimit the maximum number of changes recorded per
+     * location, or 0 for all of them.
+     */
+    private boolean captureChangeLog(Node node, Launcher launcher, FilePath workspace,
+            BuildListener listener, List<VaultSCMLocation> locations, VaultSCMRevisionState lastState,
+            Map<String, Long> currentVersions, Date lastBuildDate, Date currentDate, int historyLimit,
+            File changelogFile, VaultMetricsAction metrics) throws IOException, InterruptedException {
 
-        String latestBuildDate = VAULT_DATETIME_FORMATTER.format(lastBuildDate);
+        boolean result = true;
 
-        String today = (VAULT_DATETIME_FORMATTER.format(currentDate));
+        String latestBuildDate = formatVaultDate(lastBuildDate);
 
-        String pathToVault = getVaultPath(launcher, listener);
+        String today = (formatVaultDate(currentDate));
 
+        String pathToVault = getVaultPath(node, launcher, listener);
 
         if (pathToVault == null) {
-            return 0;
+            return false;
         }
 
-        FileOutputStream os = new FileOutputStream(changelogFile);
+        VaultChangeLogWriter changeLog = new VaultChangeLogWriter(changelogFile);
         try {
-            BufferedOutputStream bos = new BufferedOutputStream(os);
-            PrintWriter writer = new PrintWriter(new FileWriter(changelogFile));
-            try {
-
-                ArgumentListBuilder argBuildr = new ArgumentListBuilder();
-                argBuildr.add(pathToVault);
-                argBuildr.add("VERSIONHISTORY");
-
-                if (!serverName.isEmpty()) {
-                    argBuildr.add("-host", serverName);
+            for (VaultSCMLocation location : locations) {
+                Long lastVersion = lastState == null ? null : lastState.getRevision(location.getPath());
+                Long currentVersion = currentVersions.get(location.getPath());
+                if (currentVersion != null && currentVersion.equals(lastVersion)) {
+                    listener.getLogger().println("Folder version " + currentVersion + " of "
+                            + location.getPath() + " was already built.");
+                    continue;
                 }
 
-                if (!userName.isEmpty()) {
-                    argBuildr.add("-user", userName);
+                VaultSessionManager.Session session = openSession(node, launcher, listener, pathToVault);
+                boolean succeeded = false;
+                try {
+                    Long endVersion = currentVersion;
+                    int recorded = 0;
+                    while (true) {
+                        //without a known end version the history can not be paged
+                        int rows = endVersion == null ? 0 : HISTORY_PAGE_SIZE;
+                        if (historyLimit > 0) {
+                            rows = rows == 0 ? historyLimit - recorded : Math.min(rows, historyLimit - recorded);
+                        }
+
+                        ArgumentListBuilder argBuildr = createVaultCommand(pathToVault, "VERSIONHISTORY", session);
+                        if (rows > 0) {
+                            argBuildr.add("-rowlimit", String.valueOf(rows));
+                        }
+                        if (lastVersion != null && endVersion != null) {
+                            argBuildr.add("-beginversion", String.valueOf(lastVersion + 1));
+                            argBuildr.add("-endversion", String.valueOf(endVersion));
+                        } else {
+                            if (endVersion != null) {
+                                argBuildr.add("-endversion", String.valueOf(endVersion));
+                            }
+                            argBuildr.add("-enddate", today);
+                            argBuildr.add("-begindate", latestBuildDate);
+                        }
+                        argBuildr.add(location.getPath());
+
+                        int count = appendHistory(launcher, workspace, listener, argBuildr, location.getPath(),
+                                changeLog, metrics);
+                        if (count < 0) {
+                            result = false;
+                            break;
+                        }
+                        recorded += count;
+
+                        Long oldestVersion = changeLog.getOldestVersion();
+                        if (historyLimit > 0 && recorded >= historyLimit) {
+                            listener.getLogger().println("Recorded the newest " + recorded + " changes of "
+                                    + location.getPath() + ", older changes are left out.");
+                            succeeded = true;
+                            break;
+                        }
+                        if (rows == 0 || count < rows || oldestVersion == null
+                                || (lastVersion != null && oldestVersion <= lastVersion + 1)) {
+                            succeeded = true;
+                            break;
+                        }
+                        endVersion = oldestVersion - 1;
+                    }
+                } finally {
+                    VaultSessionManager.INSTANCE.release(session, succeeded);
                 }
-
-                if (!Secret.toString(password).isEmpty()) {
-                    argBuildr.add("-password");
-                    argBuildr.add(Secret.toString(password), true);
+                //like the GETs, the build fails on the first location that fails
+                if (!result) {
+                    break;
                 }
+            }
+        } catch (IOException e) {
+            VaultExecutableCache.INSTANCE.invalidate(node);
+            throw e;
+        } finally {
+            changeLog.close();
+        }
 
-                if (!repositoryName.isEmpty()) {
-                    argBuildr.add("-repository", repositoryName);
-                }
+        listener.getLogger().println("Changelog calculated successfully.");
+        listener.getLogger().println("Change log file: " + changelogFile.getAbsolutePath());
 
-                if (this.sslEnabled) {
-                    argBuildr.add("-ssl");
+        return result;
+    }
+
+    /**
+     * Runs a VERSIONHISTORY command and copies its rows to the changelog.
+     *
+     * @return the number of rows copied, or -1 if the command failed.
+     */
+    private int appendHistory(Launcher launcher, FilePath workspace, BuildListener listener,
+            ArgumentListBuilder argBuildr, String repositoryPath, VaultChangeLogWriter changeLog,
+            VaultMetricsAction metrics) throws IOException, InterruptedException {
+        File history = File.createTempFile("vault-history", ".xml");
+        try {
+            VaultCommandStats stats;
+            VaultRetry retry = new VaultRetry(DESCRIPTOR.getCommandRetries());
+            do {
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(history));
+                VaultServerLimiter.Permit permit = acquirePermit(VaultServerLimiter.Operation.HISTORY, listener, metrics);
+                try {
+                    stats = VaultCommandStats.launch("VERSIONHISTORY", repositoryPath,
+                            launcher.launch().cmds(argBuildr).envs(new String[0]).pwd(workspace), os,
+                            DESCRIPTOR.getTimeoutMillis(VaultServerLimiter.Operation.HISTORY));
+                } finally {
+                    permit.release();
+                    os.close();
                 }
+            } while (retry.again(stats, listener));
+            stats = retry.complete(stats, listener);
+            if (stats.getExitCode() != 0) {
+                record(metrics, stats);
+                listener.fatalError("Changelog failed with exit code " + stats.getExitCode());
+                return -1;
+            }
+            int count = changeLog.append(history, repositoryPath);
+            record(metrics, stats.withItems(count));
+            return count;
+        } finally {
+            history.delete();
+        }
+    }
 
-                argBuildr.add("-enddate", today);
-                argBuildr.add("-begindate", latestBuildDate);
-                argBuildr.add(this.path);
+    /**
+     * Runs VERSIONHISTORY on the node the launcher belongs to and parses the
+     * output there, so no history is written to disk or sent back to the
+     * controller.
+     *
+     * @param workspace directory to run vault in, or null when polling
+     * without a workspace.
+     * @param newestOnly ask for the newest history row only, and stop
+     * reading as soon as it has been seen.
+     * @param lastVersion only look at rows after this folder version, or
+     * null to use the date window.
+     * @param lastBuildDate start of the date window, or null to look at the
+     * whole history.
+     * @param metrics the build metrics, or null when polling.
+     */
+    private VaultPollResult queryHistory(Node node, Launcher launcher, FilePath workspace, TaskListener listener,
+            String repositoryPath, boolean newestOnly, Long lastVersion, Date lastBuildDate,
+            VaultMetricsAction metrics) throws IOException, InterruptedException {
 
-                int cmdResult = launcher.launch().cmds(argBuildr).envs(new String[0]).stdout(bos).pwd(workspace).join();
-                if (cmdResult != 0) {
-                    listener.fatalError("Determine changes count failed with exit code " + cmdResult);
-                    result = 0;
-                }
+        String pathToVault = getVaultPath(node, launcher, listener);
+
+        if (pathToVault == null) {
+            return new VaultPollResult(0, null);
+        }
 
+        VaultSessionManager.Session session = openSession(node, launcher, listener, pathToVault);
+        ArgumentListBuilder argBuildr = createVaultCommand(pathToVault, "VERSIONHISTORY", session);
+        if (newestOnly) {
+            argBuildr.add("-rowlimit", "1");
+        }
+        if (lastVersion != null) {
+            argBuildr.add("-beginversion", String.valueOf(lastVersion + 1));
+        } else if (lastBuildDate != null) {
+            argBuildr.add("-enddate", formatVaultDate(new Date()));
+            argBuildr.add("-begindate", formatVaultDate(lastBuildDate));
+        }
+        argBuildr.add(repositoryPath);
 
-            } finally {
-                writer.close();
-                bos.close();
+        String pwd = workspace == null ? null : workspace.getRemote();
+        boolean succeeded = false;
+        try {
+            VaultPollResult result;
+            VaultRetry retry = new VaultRetry(DESCRIPTOR.getCommandRetries());
+            do {
+                VaultServerLimiter.Permit permit = acquirePermit(VaultServerLimiter.Operation.HISTORY, listener, metrics);
+                try {
+                    result = launcher.getChannel().call(new VaultPollCallable(argBuildr, pwd, listener, newestOnly,
+                            repositoryPath, DESCRIPTOR.getTimeoutMillis(VaultServerLimiter.Operation.HISTORY)));
+                } finally {
+                    permit.release();
+                }
+            } while (retry.again(result.getStats(), listener));
+            VaultCommandStats stats = retry.complete(result.getStats(), listener);
+            record(metrics, stats);
+            if (stats.getExitCode() != 0) {
+                throw new IOException(stats.getTimeouts() > 0 && stats.getExitCode() == -1
+                        ? "Vault history query timed out after " + stats.getWallMillis() + " ms"
+                        : "Vault history query failed with exit code " + stats.getExitCode());
             }
+            succeeded = true;
+            return result;
+        } catch (IOException e) {
+            VaultExecutableCache.INSTANCE.invalidate(node);
+            throw e;
         } finally {
-            os.close();
+            VaultSessionManager.INSTANCE.release(session, succeeded);
+        }
+    }
+
+    /**
+     * Fetches a single file on the controller, without a workspace, for
+     * callers that only need to read it, such as a build script. The file is
+     * fetched into a temporary non working folder, and kept in
+     * {@link VaultFileCache} when fetched at a given version.
+     *
+     * @param repositoryPath the file, such as $/project/Jenkinsfile.
+     * @param version the version of the file, or null for the newest, which
+     * is always fetched.
+     * @return the contents of the file.
+     */
+    byte[] fetchFile(String repositoryPath, Long version, TaskListener listener)
+            throws IOException, InterruptedException {
+        String key = version == null ? null : VaultFileCache.key(serverName, repositoryName, repositoryPath, version);
+        byte[] contents = key == null ? null : VaultFileCache.INSTANCE.get(key);
+        if (contents != null) {
+            return contents;
+        }
+
+        Hudson hudson = Hudson.getInstance();
+        Launcher launcher = hudson.createLauncher(listener);
+        String pathToVault = getVaultPath(hudson, launcher, listener);
+        if (pathToVault == null) {
+            throw new IOException("No vault client found to fetch " + repositoryPath);
         }
+
+        File localFolder = Util.createTempDir();
+        VaultSessionManager.Session session = openSession(hudson, launcher, listener, pathToVault);
+        int cmdResult = -1;
         try {
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document doc = db.parse(changelogFile);
-            doc.getDocumentElement().normalize();
-            NodeList nodeLst = doc.getElementsByTagName("item");
-            result = nodeLst.getLength();
-        } catch (Exception e) {
-            e.printStackTrace();
+            ArgumentListBuilder argBuildr;
+            if (version == null) {
+                argBuildr = createVaultCommand(pathToVault, "GET", session);
+                argBuildr.add("-nonworkingfolder", localFolder.getAbsolutePath());
+                argBuildr.add(repositoryPath);
+            } else {
+                argBuildr = createVaultCommand(pathToVault, "GETVERSION", session);
+                argBuildr.add(String.valueOf(version));
+                argBuildr.add(repositoryPath);
+                argBuildr.add(localFolder.getAbsolutePath());
+            }
+
+            VaultCommandStats stats;
+            VaultRetry retry = new VaultRetry(DESCRIPTOR.getCommandRetries());
+            do {
+                VaultServerLimiter.Permit permit = acquirePermit(VaultServerLimiter.Operation.GET, listener, null);
+                try {
+                    stats = VaultCommandStats.launch(version == null ? "GET" : "GETVERSION", repositoryPath,
+                            launcher.launch().cmds(argBuildr).envs(new String[0]).pwd(localFolder),
+                            listener.getLogger(), DESCRIPTOR.getTimeoutMillis(VaultServerLimiter.Operation.GET));
+                } finally {
+                    permit.release();
+                }
+            } while (retry.again(stats, listener));
+            stats = retry.complete(stats, listener);
+            record(null, stats);
+            cmdResult = stats.getExitCode();
+            if (cmdResult != 0) {
+                throw new IOException("Fetching " + repositoryPath + " failed with exit code " + cmdResult);
+            }
+
+            File file = new File(localFolder, repositoryPath.substring(repositoryPath.lastIndexOf('/') + 1));
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) file.length());
+            InputStream in = new FileInputStream(file);
+            try {
+                Util.copyStream(in, buffer);
+            } finally {
+                in.close();
+            }
+            contents = buffer.toByteArray();
+        } catch (IOException e) {
+            VaultExecutableCache.INSTANCE.invalidate(hudson);
+            throw e;
+        } finally {
+            VaultSessionManager.INSTANCE.release(session, cmdResult == 0);
+            Util.deleteRecursive(localFolder);
         }
 
-        return result;
+        if (key != null) {
+            VaultFileCache.INSTANCE.put(key, contents);
+        }
+        return contents;
     }
 }
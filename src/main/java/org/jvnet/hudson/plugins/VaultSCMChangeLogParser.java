@@ -11,12 +11,6 @@ import hudson.scm.ChangeLogSet;
 import hudson.scm.ChangeLogSet.Entry;
 import java.io.File;
 import java.io.IOException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.jvnet.hudson.plugins.VaultSCMChangeLogSet.VaultSCMChangeLogSetEntry;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 public class VaultSCMChangeLogParser extends ChangeLogParser {
@@ -26,41 +20,29 @@ public class VaultSCMChangeLogParser extends ChangeLogParser {
     public ChangeLogSet<? extends Entry> parse(AbstractBuild build,
             File changelogFile) throws IOException, SAXException {
 
-        String userName;
-        String date;
-        String comment;
-        String version;
-        //open the changelog File
-        VaultSCMChangeLogSet cls = new VaultSCMChangeLogSet(build);
-        try {
-
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document doc = db.parse(changelogFile);
-            doc.getDocumentElement().normalize();
-            NodeList nodeLst = doc.getElementsByTagName("item");
-
-            for (int s = 0; s < nodeLst.getLength(); s++) {
-
-                Element mostRecentChange = (Element) nodeLst.item(s);
-                userName = mostRecentChange.getAttribute("user");
-                date = mostRecentChange.getAttribute("date");
-                comment = mostRecentChange.getAttribute("comment");
-                version = mostRecentChange.getAttribute("version");
-
-
+        if (!changelogFile.exists() || changelogFile.length() == 0) {
+            return new VaultSCMChangeLogSet(build);
+        }
 
-                VaultSCMChangeLogSetEntry next = new VaultSCMChangeLogSetEntry(comment, version, date, cls, userName);
-                if (!cls.addEntry(next)) {
-                    break;
+        //only the totals are read here, the changes are read when shown
+        try {
+            VaultChangeLogSummary summary;
+            VaultChangeLogReader reader = new VaultChangeLogReader(changelogFile);
+            try {
+                summary = reader.getSummary();
+                if (summary == null) {
+                    //history XML of an older build has no header, count it
+                    summary = new VaultChangeLogSummary();
+                    while (reader.next()) {
+                        summary.add(reader.getVersion(), reader.getUser());
+                    }
                 }
+            } finally {
+                reader.close();
             }
-
-        } catch (Exception e) {
-            e.printStackTrace();
+            return new VaultSCMChangeLogSet(build, changelogFile, summary);
+        } catch (IOException e) {
+            throw new IOException("Failed to parse changelog " + changelogFile + ": " + e.getMessage(), e);
         }
-
-
-        return cls;
     }
 }
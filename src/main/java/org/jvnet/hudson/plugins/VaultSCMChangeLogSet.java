@@ -9,42 +9,249 @@ import hudson.model.AbstractBuild;
 import hudson.model.User;
 import hudson.scm.ChangeLogSet;
 import hudson.scm.EditType;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.jvnet.hudson.plugins.VaultSCMChangeLogSet.VaultSCMChangeLogSetEntry;
 import org.kohsuke.stapler.export.Exported;
 
+/**
+ * Changes of a build, read from its changelog file on demand. Only the
+ * number of changes, their summary and the first page of changes are kept;
+ * other pages are decoded when needed and held in a small cache that the
+ * garbage collector may clear.
+ */
 public final class VaultSCMChangeLogSet extends ChangeLogSet<VaultSCMChangeLogSetEntry> {
 
+    private static final Logger LOG = Logger.getLogger(VaultSCMChangeLogSet.class.getName());
+
+    /**
+     * Number of changes on a page of the changes view.
+     */
+    private static final int PAGE_SIZE = Integer.getInteger(VaultSCMChangeLogSet.class.getName() + ".pageSize", 100);
+
+    /**
+     * Number of decoded pages kept besides the first one.
+     */
+    private static final int CACHED_PAGES = 8;
+
+    /**
+     * Most changes an iterator reads from the changelog at a time.
+     */
+    private static final int MAX_RUN = 100 * PAGE_SIZE;
+
     protected VaultSCMChangeLogSet(AbstractBuild<?, ?> build) {
         super(build);
-        changes = new ArrayList<VaultSCMChangeLogSetEntry>();
+        changelogFile = null;
+        summary = null;
+        head = Collections.emptyList();
     }
 
+    /**
+     * @param summary the totals of the changelog, giving the number of
+     * changes.
+     */
+    VaultSCMChangeLogSet(AbstractBuild<?, ?> build, File changelogFile, VaultChangeLogSummary summary)
+            throws IOException {
+        super(build);
+        this.changelogFile = changelogFile;
+        this.summary = summary;
+        head = readPage(0);
+    }
+
+    /**
+     * Walks the changes after the first page in runs read from the changelog
+     * by {@link #readEntries}, which closes the file before returning, so an
+     * iteration stopped early leaves nothing open. Runs start at one page
+     * and double up to {@link #MAX_RUN} changes, so a full iteration skips
+     * over few changes it has already read.
+     */
     public Iterator<VaultSCMChangeLogSetEntry> iterator() {
-        return changes.iterator();
+        return new Iterator<VaultSCMChangeLogSetEntry>() {
+            private Iterator<VaultSCMChangeLogSetEntry> run = head.iterator();
+            private int read = head.size();
+
+            public boolean hasNext() {
+                if (run.hasNext()) {
+                    return true;
+                }
+                if (read >= getSize()) {
+                    return false;
+                }
+                List<VaultSCMChangeLogSetEntry> entries;
+                try {
+                    entries = readEntries(read, Math.min(Math.max(read, PAGE_SIZE), MAX_RUN));
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Failed to read changes from " + changelogFile, e);
+                    entries = Collections.emptyList();
+                }
+                read = entries.isEmpty() ? getSize() : read + entries.size();
+                run = entries.iterator();
+                return run.hasNext();
+            }
+
+            public VaultSCMChangeLogSetEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return run.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     @Override
     public boolean isEmptySet() {
-        return changes.isEmpty();
+        return getSize() == 0;
+    }
+
+    /**
+     * @return the number of changes.
+     */
+    public int getSize() {
+        return summary == null ? 0 : summary.getEntryCount();
+    }
+
+    /**
+     * @return the totals of the changelog, or null if it had no changes.
+     */
+    public VaultChangeLogSummary getSummary() {
+        return summary;
+    }
+
+    public int getPageSize() {
+        return PAGE_SIZE;
+    }
+
+    public int getPageCount() {
+        return (getSize() + PAGE_SIZE - 1) / PAGE_SIZE;
+    }
+
+    /**
+     * @return the first page of changes.
+     */
+    public List<VaultSCMChangeLogSetEntry> getHead() {
+        return head;
+    }
+
+    /**
+     * @return the changes on a page, counting from 0.
+     */
+    public List<VaultSCMChangeLogSetEntry> getPage(int page) {
+        if (page == 0) {
+            return head;
+        }
+        if (page < 0 || page >= getPageCount()) {
+            return Collections.emptyList();
+        }
+        synchronized (pages) {
+            SoftReference<List<VaultSCMChangeLogSetEntry>> cached = pages.get(page);
+            List<VaultSCMChangeLogSetEntry> entries = cached == null ? null : cached.get();
+            if (entries != null) {
+                return entries;
+            }
+        }
+        List<VaultSCMChangeLogSetEntry> entries;
+        try {
+            entries = readPage(page);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to read changes from " + changelogFile, e);
+            return Collections.emptyList();
+        }
+        synchronized (pages) {
+            pages.put(page, new SoftReference<List<VaultSCMChangeLogSetEntry>>(entries));
+        }
+        return entries;
+    }
+
+    /**
+     * Converts the page request parameter of the changes view.
+     *
+     * @return the page number, or 0 if it is missing or out of range.
+     */
+    public int toPageIndex(String page) {
+        try {
+            int index = Integer.parseInt(page);
+            return index >= 0 && index < getPageCount() ? index : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
-    public boolean addEntry(VaultSCMChangeLogSetEntry e) {
-        return changes.add(e);
+    private List<VaultSCMChangeLogSetEntry> readPage(int page) throws IOException {
+        return readEntries(page * PAGE_SIZE, PAGE_SIZE);
     }
-    private Collection<VaultSCMChangeLogSetEntry> changes;
+
+    /**
+     * Reads a run of changes, opening the changelog and closing it again
+     * before returning.
+     *
+     * @param offset the number of changes to skip.
+     * @param count the most changes to read.
+     */
+    private List<VaultSCMChangeLogSetEntry> readEntries(int offset, int count) throws IOException {
+        List<VaultSCMChangeLogSetEntry> entries = new ArrayList<VaultSCMChangeLogSetEntry>();
+        if (changelogFile == null) {
+            return entries;
+        }
+        VaultChangeLogReader reader = new VaultChangeLogReader(changelogFile);
+        try {
+            for (int i = 0; i < offset; i++) {
+                if (!reader.skip()) {
+                    return entries;
+                }
+            }
+            while (entries.size() < count && reader.next()) {
+                entries.add(new VaultSCMChangeLogSetEntry(reader.getComment(), reader.getVersion(),
+                        reader.getDate(), this, reader.getUser(), reader.getPath()));
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+    private final File changelogFile;
+    private final VaultChangeLogSummary summary;
+    private final List<VaultSCMChangeLogSetEntry> head;
+    private final Map<Integer, SoftReference<List<VaultSCMChangeLogSetEntry>>> pages =
+            new LinkedHashMap<Integer, SoftReference<List<VaultSCMChangeLogSetEntry>>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, SoftReference<List<VaultSCMChangeLogSetEntry>>> eldest) {
+                    return size() > CACHED_PAGES;
+                }
+            };
 
     public static class VaultSCMChangeLogSetEntry extends ChangeLogSet.Entry {
 
         @SuppressWarnings("rawtypes")
         public VaultSCMChangeLogSetEntry(String comment, String version, String date, ChangeLogSet parent, String userName) {
-            this.affectedFile = "User defined path";
+            this(comment, version, date, parent, userName, null);
+        }
+
+        /**
+         * @param path the repository path the change belongs to, or null if
+         * it was not recorded.
+         */
+        @SuppressWarnings("rawtypes")
+        public VaultSCMChangeLogSetEntry(String comment, String version, String date, ChangeLogSet parent, String userName, String path) {
+            this.affectedFile = path == null ? "User defined path" : path;
             this.comment = comment;
             this.version = version;
             this.date = date;
-            this.user = User.get(userName);
+            this.userName = userName;
             setParent(parent);
         }
 
@@ -67,20 +274,31 @@ public final class VaultSCMChangeLogSet extends ChangeLogSet<VaultSCMChangeLogSe
         @Override
         public Collection<String> getAffectedPaths() {
             Collection<String> col = new ArrayList<String>();
-            col.add("user defined path");
+            col.add(affectedFile);
             return col;
         }
 
+        /**
+         * @return the vault user who made the change.
+         */
+        public String getUserName() {
+            return userName;
+        }
+
         @Override
         public User getAuthor() {
+            //users are looked up only when a change is shown
             if (user == null) {
-                return User.getUnknown();
+                user = VaultUserResolver.INSTANCE.resolve(userName);
             }
             return user;
         }
 
         @Exported
         public EditType getEditType() {
+            if (action == null) {
+                return EditType.EDIT;
+            }
             if (action.equalsIgnoreCase("delete")) {
                 return EditType.DELETE;
             }
@@ -98,6 +316,7 @@ public final class VaultSCMChangeLogSet extends ChangeLogSet<VaultSCMChangeLogSe
         String affectedFile;
         String version;
         String date;
+        private String userName;
         private User user;
         private String action; //default is edit	
     }
@@ -0,0 +1,81 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.FilePath;
+import hudson.Util;
+import java.io.Serializable;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A repository path checked out by {@link VaultSCM}, the workspace
+ * subdirectory it is fetched into and the folders to include or leave out
+ * below it.
+ */
+public final class VaultSCMLocation implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String path; //path in repository. Starts with $ sign.
+    private final String localDirectory; //relative to the workspace, empty for the workspace itself
+    private final String includes;
+    private final String excludes;
+
+    @DataBoundConstructor
+    public VaultSCMLocation(String path, String localDirectory, String includes, String excludes) {
+        if (!isRelativeDirectory(localDirectory)) {
+            throw new IllegalArgumentException("Workspace subdirectory " + localDirectory
+                    + " of " + path + " must be relative to the workspace and stay inside it");
+        }
+        this.path = Util.fixEmptyAndTrim(path);
+        this.localDirectory = Util.fixEmptyAndTrim(localDirectory);
+        this.includes = Util.fixEmptyAndTrim(includes);
+        this.excludes = Util.fixEmptyAndTrim(excludes);
+    }
+
+    /**
+     * @return true if the directory is empty, or relative without a ".."
+     * segment, so it can not lead out of the workspace.
+     */
+    static boolean isRelativeDirectory(String directory) {
+        directory = Util.fixEmptyAndTrim(directory);
+        if (directory == null) {
+            return true;
+        }
+        if (directory.startsWith("/") || directory.startsWith("\\")
+                || (directory.length() > 1 && directory.charAt(1) == ':')) {
+            return false;
+        }
+        for (String segment : directory.split("[/\\\\]")) {
+            if (segment.trim().equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getLocalDirectory() {
+        return localDirectory;
+    }
+
+    public String getIncludes() {
+        return includes;
+    }
+
+    public String getExcludes() {
+        return excludes;
+    }
+
+    VaultPathFilter getFilter() {
+        return new VaultPathFilter(includes, excludes);
+    }
+
+    /**
+     * @return the folder in the workspace the path is fetched into.
+     */
+    FilePath getLocalFolder(FilePath workspace) {
+        return localDirectory == null ? workspace : workspace.child(localDirectory);
+    }
+}
@@ -32,6 +32,14 @@ public class VaultSCMRevisionState extends SCMRevisionState {
         revisions.put(key, value);
     }
 
+    /**
+     * @return the folder version recorded for the given repository path, or
+     * null if none was recorded.
+     */
+    public Long getRevision(String key) {
+        return revisions == null ? null : revisions.get(key);
+    }
+
     public void setRevisions(Map<String, Long> revisions) {
         this.revisions = revisions;
     }
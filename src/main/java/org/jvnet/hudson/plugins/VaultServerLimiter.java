@@ -0,0 +1,205 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.model.TaskListener;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of vault commands of one kind running against a server
+ * at the same time, across all builds and polls. Commands over the limit
+ * wait in first come, first served order and report their place in the
+ * queue to the console.
+ */
+public final class VaultServerLimiter {
+
+    /**
+     * How long a waiting command sleeps before checking the limit again, in
+     * case it was raised in the configuration.
+     */
+    private static final long RECHECK = TimeUnit.SECONDS.toMillis(5);
+
+    public static final VaultServerLimiter INSTANCE = new VaultServerLimiter();
+
+    /**
+     * Kinds of vault commands with their own limit.
+     */
+    public enum Operation {
+
+        /**
+         * Commands fetching files.
+         */
+        GET,
+        /**
+         * History queries and folder listings.
+         */
+        HISTORY
+    }
+
+    private final ConcurrentMap<String, Gate> gates = new ConcurrentHashMap<String, Gate>();
+
+    /**
+     * Commands of one kind against one server.
+     */
+    public static final class Gate {
+
+        private final String serverName;
+        private final Operation operation;
+        private final LinkedList<Object> waiting = new LinkedList<Object>();
+        private int running;
+        private long acquired;
+        private long waited;
+        private long totalWaitMillis;
+        private long maxWaitMillis;
+
+        private Gate(String serverName, Operation operation) {
+            this.serverName = serverName;
+            this.operation = operation;
+        }
+
+        public String getServerName() {
+            return serverName;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public synchronized int getRunning() {
+            return running;
+        }
+
+        /**
+         * @return the number of commands waiting for the limit.
+         */
+        public synchronized int getQueueDepth() {
+            return waiting.size();
+        }
+
+        public synchronized long getAcquired() {
+            return acquired;
+        }
+
+        /**
+         * @return the number of commands that had to wait.
+         */
+        public synchronized long getWaited() {
+            return waited;
+        }
+
+        public synchronized long getTotalWaitMillis() {
+            return totalWaitMillis;
+        }
+
+        public synchronized long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+    }
+
+    /**
+     * Permission to run one command, to be released once it has finished.
+     */
+    public static final class Permit {
+
+        private final Gate gate;
+        private final long waitMillis;
+        private boolean released;
+
+        private Permit(Gate gate, long waitMillis) {
+            this.gate = gate;
+            this.waitMillis = waitMillis;
+        }
+
+        /**
+         * @return how long the command waited for the limit.
+         */
+        public long getWaitMillis() {
+            return waitMillis;
+        }
+
+        public void release() {
+            if (gate == null) {
+                return;
+            }
+            synchronized (gate) {
+                if (!released) {
+                    released = true;
+                    gate.running--;
+                    gate.notifyAll();
+                }
+            }
+        }
+    }
+
+    private VaultServerLimiter() {
+    }
+
+    /**
+     * Waits until fewer than the limit of commands of the kind are running
+     * against the server.
+     *
+     * @param limit the maximum number of concurrent commands, or 0 for no
+     * limit.
+     */
+    public Permit acquire(String serverName, Operation operation, int limit, TaskListener listener)
+            throws InterruptedException {
+        if (limit <= 0) {
+            return new Permit(null, 0);
+        }
+        Gate gate = gates.get(serverName + '\n' + operation);
+        if (gate == null) {
+            Gate created = new Gate(serverName, operation);
+            gate = gates.putIfAbsent(serverName + '\n' + operation, created);
+            if (gate == null) {
+                gate = created;
+            }
+        }
+
+        Object ticket = new Object();
+        long start = System.currentTimeMillis();
+        synchronized (gate) {
+            gate.waiting.add(ticket);
+            int reported = 0;
+            try {
+                while (gate.waiting.getFirst() != ticket || gate.running >= limit) {
+                    int position = gate.waiting.indexOf(ticket) + 1;
+                    if (position != reported) {
+                        listener.getLogger().println("Waiting for vault " + operation + " slot on " + serverName
+                                + " (" + gate.running + " running, position " + position + " in queue)");
+                        reported = position;
+                    }
+                    gate.wait(RECHECK);
+                }
+            } catch (InterruptedException e) {
+                gate.waiting.remove(ticket);
+                gate.notifyAll();
+                throw e;
+            }
+            gate.waiting.removeFirst();
+            gate.running++;
+            //the next in line may fit as well
+            gate.notifyAll();
+
+            long waitMillis = System.currentTimeMillis() - start;
+            gate.acquired++;
+            if (reported > 0) {
+                gate.waited++;
+                listener.getLogger().println("Got vault " + operation + " slot on " + serverName
+                        + " after " + waitMillis + " ms");
+            }
+            gate.totalWaitMillis += waitMillis;
+            gate.maxWaitMillis = Math.max(gate.maxWaitMillis, waitMillis);
+            return new Permit(gate, waitMillis);
+        }
+    }
+
+    /**
+     * @return the queues of all servers and kinds of command seen so far.
+     */
+    public List<Gate> getGates() {
+        return new ArrayList<Gate>(gates.values());
+    }
+}
@@ -0,0 +1,132 @@
+package org.jvnet.hudson.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Aggregates the vault commands run since startup per server and command,
+ * with a histogram of their wall times, so a slower server or network shows
+ * up across all jobs.
+ */
+public final class VaultServerMetrics {
+
+    private static final Logger LOG = Logger.getLogger(VaultServerMetrics.class.getName());
+
+    /**
+     * Upper bounds of the wall time buckets, in milliseconds. The last
+     * bucket holds everything slower.
+     */
+    private static final long[] BUCKETS = {100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    public static final VaultServerMetrics INSTANCE = new VaultServerMetrics();
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * Wall times and totals of one command against one server.
+     */
+    public static final class Histogram {
+
+        private final String serverName;
+        private final String command;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong wallMillis = new AtomicLong();
+        private final AtomicLong outputBytes = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+
+        private Histogram(String serverName, String command) {
+            this.serverName = serverName;
+            this.command = command;
+        }
+
+        private void record(VaultCommandStats stats) {
+            count.incrementAndGet();
+            if (stats.getExitCode() != 0) {
+                failures.incrementAndGet();
+            }
+            wallMillis.addAndGet(stats.getWallMillis());
+            outputBytes.addAndGet(stats.getOutputBytes());
+            int bucket = 0;
+            while (bucket < BUCKETS.length && stats.getWallMillis() > BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+        }
+
+        public String getServerName() {
+            return serverName;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public long getMeanWallMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : wallMillis.get() / n;
+        }
+
+        public long getOutputBytes() {
+            return outputBytes.get();
+        }
+
+        /**
+         * @return the bucket counts as "&lt;=100ms: n" pairs, leaving out
+         * empty buckets.
+         */
+        public String getBuckets() {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i <= BUCKETS.length; i++) {
+                long n = buckets.get(i);
+                if (n == 0) {
+                    continue;
+                }
+                if (text.length() > 0) {
+                    text.append(", ");
+                }
+                text.append(i < BUCKETS.length ? "<=" + BUCKETS[i] : ">" + BUCKETS[BUCKETS.length - 1])
+                        .append("ms: ").append(n);
+            }
+            return text.toString();
+        }
+    }
+
+    private VaultServerMetrics() {
+    }
+
+    public void record(String serverName, VaultCommandStats stats) {
+        String key = serverName + '\n' + stats.getCommand();
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            Histogram created = new Histogram(serverName, stats.getCommand());
+            histogram = histograms.putIfAbsent(key, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(stats);
+        LOG.log(Level.FINE, "{0} on {1}", new Object[]{stats, serverName});
+    }
+
+    /**
+     * @return the histograms of all servers and commands seen so far.
+     */
+    public List<Histogram> getHistograms() {
+        return new ArrayList<Histogram>(histograms.values());
+    }
+}
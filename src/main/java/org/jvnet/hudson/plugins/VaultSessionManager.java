@@ -0,0 +1,166 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the login remembered by the vault client on each node.
+ * Once REMEMBERLOGIN has been run for a server and user, later commands
+ * on that node leave out the connection credentials until the remembered
+ * login expires or a command using it fails.
+ *
+ * The vault client remembers a single login per node, so a node is only
+ * switched to another identity when no command is using the current one.
+ * Until then, commands for the other identity pass their credentials as
+ * before.
+ */
+public final class VaultSessionManager {
+
+    private static final Logger LOG = Logger.getLogger(VaultSessionManager.class.getName());
+
+    /**
+     * How long a remembered login is trusted before logging in again.
+     */
+    private static final long TTL = TimeUnit.MINUTES.toMillis(
+            Integer.getInteger(VaultSessionManager.class.getName() + ".ttlMinutes", 30));
+
+    public static final VaultSessionManager INSTANCE = new VaultSessionManager();
+
+    private final Map<String, Session> sessions = new HashMap<String, Session>();
+    private long logins;
+    private long loginsAvoided;
+
+    /**
+     * A remembered login on one node, held while a command uses it.
+     */
+    public static final class Session {
+
+        private final String nodeName;
+        private final String identity;
+        private boolean loggedIn;
+        private long expiresAt;
+        private int users;
+
+        private Session(String nodeName, String identity) {
+            this.nodeName = nodeName;
+            this.identity = identity;
+        }
+
+        private boolean isUsable(String identity, long now) {
+            return loggedIn && this.identity.equals(identity) && now < expiresAt;
+        }
+    }
+
+    private VaultSessionManager() {
+    }
+
+    /**
+     * Returns a remembered login for the identity on the node, running the
+     * login command first if needed. The login command counts against the
+     * history limit of the server and is recorded in its metrics like any
+     * other command.
+     *
+     * @param identity identifies the server, user and credentials.
+     * @param loginCommand the REMEMBERLOGIN command to run.
+     * @return null if the remembered login can not be used, in which case
+     * the command has to pass its own credentials.
+     */
+    public Session acquire(String nodeName, String serverName, String identity, Launcher launcher,
+            TaskListener listener, ArgumentListBuilder loginCommand) throws IOException, InterruptedException {
+
+        Session session;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            session = sessions.get(nodeName);
+            if (session != null && session.isUsable(identity, now)) {
+                session.users++;
+                loginsAvoided++;
+                return session;
+            }
+            if (session != null && session.users > 0) {
+                //the remembered login is busy, possibly for someone else
+                return null;
+            }
+            session = new Session(nodeName, identity);
+            session.users = 1;
+            sessions.put(nodeName, session);
+        }
+
+        boolean loggedIn = false;
+        try {
+            //a login that hangs or fails is not retried, commands then pass their own credentials
+            VaultCommandStats stats;
+            VaultServerLimiter.Permit permit = VaultServerLimiter.INSTANCE.acquire(serverName,
+                    VaultServerLimiter.Operation.HISTORY,
+                    VaultSCM.DESCRIPTOR.getConcurrencyLimit(VaultServerLimiter.Operation.HISTORY), listener);
+            try {
+                stats = VaultCommandStats.launch("REMEMBERLOGIN", null,
+                        launcher.launch().cmds(loginCommand).envs(new String[0]), listener.getLogger(),
+                        VaultSCM.DESCRIPTOR.getTimeoutMillis(VaultServerLimiter.Operation.HISTORY));
+            } finally {
+                permit.release();
+            }
+            VaultServerMetrics.INSTANCE.record(serverName, stats);
+            if (stats.getExitCode() != 0) {
+                listener.getLogger().println("Vault REMEMBERLOGIN failed with exit code " + stats.getExitCode()
+                        + ", passing credentials with each command.");
+                return null;
+            }
+            loggedIn = true;
+        } finally {
+            synchronized (this) {
+                if (loggedIn) {
+                    logins++;
+                    session.loggedIn = true;
+                    session.expiresAt = System.currentTimeMillis() + TTL;
+                    LOG.log(Level.FINE, "Remembered vault login on {0}, {1} logins avoided so far",
+                            new Object[]{nodeName, loginsAvoided});
+                } else if (sessions.get(nodeName) == session) {
+                    sessions.remove(nodeName);
+                }
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Hands back a session obtained from {@link #acquire}.
+     *
+     * @param succeeded false if the command failed, so the next command
+     * logs in again.
+     */
+    public synchronized void release(Session session, boolean succeeded) {
+        if (session == null) {
+            return;
+        }
+        session.users--;
+        if (!succeeded) {
+            session.expiresAt = 0;
+        }
+        if (session.users == 0 && session.expiresAt <= System.currentTimeMillis()
+                && sessions.get(session.nodeName) == session) {
+            sessions.remove(session.nodeName);
+        }
+    }
+
+    /**
+     * @return the number of REMEMBERLOGIN commands run.
+     */
+    public synchronized long getLogins() {
+        return logins;
+    }
+
+    /**
+     * @return the number of commands that reused a remembered login.
+     */
+    public synchronized long getLoginsAvoided() {
+        return loginsAvoided;
+    }
+}
@@ -0,0 +1,115 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.model.User;
+import hudson.tasks.Mailer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finds the Jenkins user behind a vault user name. Names can be mapped to a
+ * Jenkins user id or e-mail address in the global configuration; other
+ * names are used as the Jenkins user id. Only existing users are found,
+ * names without one resolve to the unknown user rather than creating a
+ * user record. Resolved users are kept in a bounded cache shared by all
+ * changelogs, so each name is looked up once.
+ */
+public final class VaultUserResolver {
+
+    /**
+     * Number of vault user names whose Jenkins user is remembered.
+     */
+    private static final int CACHE_SIZE = Integer.getInteger(VaultUserResolver.class.getName() + ".cacheSize", 1000);
+
+    public static final VaultUserResolver INSTANCE = new VaultUserResolver();
+
+    private Map<String, String> mappings = new HashMap<String, String>();
+    /**
+     * Users by lower case e-mail address, built on the first lookup by
+     * address after the mappings change.
+     */
+    private Map<String, User> usersByEmail;
+    private final Map<String, User> cache = new LinkedHashMap<String, User>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, User> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private VaultUserResolver() {
+    }
+
+    /**
+     * Replaces the mappings and forgets the users resolved so far.
+     *
+     * @param text lines of vaultUser=jenkinsIdOrEmail, or null for none.
+     */
+    public synchronized void setMappings(String text) {
+        Map<String, String> parsed = new HashMap<String, String>();
+        if (text != null) {
+            for (String line : text.split("\r?\n")) {
+                int separator = line.indexOf('=');
+                if (separator <= 0) {
+                    continue;
+                }
+                String vaultUser = line.substring(0, separator).trim();
+                String jenkinsUser = line.substring(separator + 1).trim();
+                if (vaultUser.length() > 0 && jenkinsUser.length() > 0) {
+                    parsed.put(vaultUser.toLowerCase(), jenkinsUser);
+                }
+            }
+        }
+        mappings = parsed;
+        usersByEmail = null;
+        cache.clear();
+    }
+
+    /**
+     * @return the Jenkins user for a vault user name, or the unknown user if
+     * there is no name.
+     */
+    public User resolve(String vaultUser) {
+        if (vaultUser == null || vaultUser.trim().length() == 0) {
+            return User.getUnknown();
+        }
+        String mapped;
+        synchronized (this) {
+            User user = cache.get(vaultUser);
+            if (user != null) {
+                return user;
+            }
+            mapped = mappings.get(vaultUser.toLowerCase());
+        }
+
+        User user;
+        if (mapped == null) {
+            user = User.get(vaultUser, false);
+        } else if (mapped.indexOf('@') > 0) {
+            user = findByEmail(mapped);
+        } else {
+            user = User.get(mapped, false);
+        }
+        if (user == null) {
+            user = User.getUnknown();
+        }
+
+        synchronized (this) {
+            cache.put(vaultUser, user);
+        }
+        return user;
+    }
+
+    private synchronized User findByEmail(String address) {
+        if (usersByEmail == null) {
+            usersByEmail = new HashMap<String, User>();
+            for (User user : User.getAll()) {
+                Mailer.UserProperty property = user.getProperty(Mailer.UserProperty.class);
+                if (property != null && property.getAddress() != null
+                        && !usersByEmail.containsKey(property.getAddress().toLowerCase())) {
+                    usersByEmail.put(property.getAddress().toLowerCase(), user);
+                }
+            }
+        }
+        return usersByEmail.get(address.toLowerCase());
+    }
+}
@@ -0,0 +1,403 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * A scriptable stand-in for the vault command line client. Installing it
+ * writes a shell script that runs {@link #main} in a new JVM, so the plugin
+ * launches it exactly like the real client.
+ *
+ * Each invocation reads the control file, which sets the folder version of
+ * the repository, the files a GET creates, and per command latency and exit
+ * codes, and appends its arguments to the command log. It also keeps count
+ * of the commands of each kind running at the same time. GET, GETVERSION,
+ * LISTFOLDER, VERSIONHISTORY and REMEMBERLOGIN are understood.
+ */
+final class FakeVault {
+
+    static final String CONTROL_PROPERTY = "fakevault.control";
+
+    /**
+     * Name of the file counting the commands running, and the most that
+     * ever ran at the same time, by command.
+     */
+    private static final String RUNNING = "running.properties";
+
+    /**
+     * Options of the vault client that take a value.
+     */
+    private static final Set<String> VALUE_OPTIONS = new HashSet<String>(Arrays.asList(
+            "-repository", "-host", "-user", "-password", "-merge", "-setfiletime", "-workingfolder",
+            "-nonworkingfolder", "-rowlimit", "-beginversion", "-endversion", "-begindate", "-enddate"));
+
+    private static int installed;
+
+    private final String name;
+    private final File executable;
+    private final File control;
+    private final File log;
+    private final File running;
+    private final Properties settings = new Properties();
+
+    private FakeVault(File dir) {
+        synchronized (FakeVault.class) {
+            name = "fake-vault-" + (++installed);
+        }
+        executable = new File(dir, "vault");
+        control = new File(dir, "control.properties");
+        log = new File(dir, "commands.log");
+        running = new File(dir, RUNNING);
+    }
+
+    /**
+     * Installs a fake vault client into a directory, with a repository at
+     * folder version 1 holding one file.
+     */
+    static FakeVault install(File dir) throws IOException {
+        FakeVault vault = new FakeVault(dir);
+        String classes;
+        try {
+            classes = new File(FakeVault.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                    .getAbsolutePath();
+        } catch (URISyntaxException e) {
+            throw new IOException("Failed to locate the classes of the fake vault client", e);
+        }
+        Writer script = new OutputStreamWriter(new FileOutputStream(vault.executable), "UTF-8");
+        try {
+            script.write("#!/bin/sh\n");
+            script.write("exec '" + new File(System.getProperty("java.home"), "bin/java").getAbsolutePath()
+                    + "' -cp '" + classes + "' -D" + CONTROL_PROPERTY + "='" + vault.control.getAbsolutePath()
+                    + "' " + FakeVault.class.getName() + " \"$@\"\n");
+        } finally {
+            script.close();
+        }
+        if (!vault.executable.setExecutable(true)) {
+            throw new IOException("Failed to make " + vault.executable + " executable");
+        }
+        vault.set("newestVersion", 1);
+        return vault;
+    }
+
+    /**
+     * Changes a setting of the control file, which is picked up by the next
+     * command. The settings are:
+     * <ul>
+     * <li>newestVersion: the folder version; the history holds one change
+     * per version, down to 1.</li>
+     * <li>files, fileSize: the number of files a GET of a folder creates,
+     * and their size in bytes. A GET or GETVERSION of a path whose name has
+     * an extension creates just that file. Files repeat their name, one
+     * line after the other, up to their size.</li>
+     * <li>latencyMillis, latencyMillis.COMMAND: time every command, or one
+     * command, takes before printing anything.</li>
+     * <li>exitCode.COMMAND: the exit code of a command.</li>
+     * </ul>
+     */
+    FakeVault set(String key, Object value) throws IOException {
+        synchronized (settings) {
+            settings.setProperty(key, String.valueOf(value));
+            File temp = new File(control.getPath() + ".tmp");
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                settings.store(out, null);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(control)) {
+                control.delete();
+                if (!temp.renameTo(control)) {
+                    throw new IOException("Failed to write " + control);
+                }
+            }
+        }
+        return this;
+    }
+
+    String getExecutable() {
+        return executable.getAbsolutePath();
+    }
+
+    VaultSCMInstallation getInstallation() {
+        return new VaultSCMInstallation(name, executable.getParent(), getExecutable());
+    }
+
+    /**
+     * Creates a job configuration against the fake client, with every option
+     * off.
+     */
+    VaultSCM createSCM(String path) {
+        return new VaultSCM("vaultserver", path, "builder", "secret", "repo", name, false, false,
+                "overwrite", "modification", false, false, false, false, null, false, false, 0, null, null,
+                Collections.<VaultSCMLocation>emptyList(), 0, 0, false, false);
+    }
+
+    /**
+     * @return the arguments of every command run so far, one line each, in
+     * the order they started.
+     */
+    List<String> getCommands() throws IOException {
+        List<String> commands = new ArrayList<String>();
+        if (!log.exists()) {
+            return commands;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(log), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                commands.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return commands;
+    }
+
+    /**
+     * @return the arguments of the commands run so far with the given name.
+     */
+    List<String> getCommands(String command) throws IOException {
+        List<String> commands = new ArrayList<String>();
+        for (String line : getCommands()) {
+            if (line.startsWith(command + " ")) {
+                commands.add(line);
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * @return the most commands with the given name that have run at the
+     * same time.
+     */
+    int getPeak(String command) throws IOException {
+        if (!running.exists()) {
+            return 0;
+        }
+        Properties counts = new Properties();
+        InputStream in = new FileInputStream(running);
+        try {
+            counts.load(in);
+        } finally {
+            in.close();
+        }
+        return Integer.parseInt(counts.getProperty(command + ".peak", "0"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties settings = new Properties();
+        InputStream in = new FileInputStream(System.getProperty(CONTROL_PROPERTY));
+        try {
+            settings.load(in);
+        } finally {
+            in.close();
+        }
+        String command = args.length == 0 ? "" : args[0].toUpperCase();
+        File dir = new File(System.getProperty(CONTROL_PROPERTY)).getParentFile();
+        record(new File(dir, "commands.log"), args);
+
+        int exitCode;
+        count(new File(dir, RUNNING), command, 1);
+        try {
+            exitCode = run(command, args, settings);
+        } finally {
+            count(new File(dir, RUNNING), command, -1);
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * Runs a command, printing its output.
+     *
+     * @return the exit code.
+     */
+    private static int run(String command, String[] args, Properties settings) throws Exception {
+        long latency = Long.parseLong(settings.getProperty("latencyMillis." + command,
+                settings.getProperty("latencyMillis", "0")));
+        if (latency > 0) {
+            Thread.sleep(latency);
+        }
+
+        PrintStream out = new PrintStream(System.out, false, "UTF-8");
+        int exitCode = Integer.parseInt(settings.getProperty("exitCode." + command, "0"));
+        if (exitCode != 0) {
+            out.println("<vault>");
+            out.println("  <error>Fake " + command + " failure</error>");
+            out.println("  <result success=\"no\" />");
+            out.println("</vault>");
+            out.flush();
+            return exitCode;
+        }
+
+        List<String> positional = new ArrayList<String>();
+        Properties options = new Properties();
+        for (int i = 1; i < args.length; i++) {
+            if (VALUE_OPTIONS.contains(args[i]) && i + 1 < args.length) {
+                options.setProperty(args[i], args[++i]);
+            } else if (args[i].startsWith("-")) {
+                options.setProperty(args[i], "");
+            } else {
+                positional.add(args[i]);
+            }
+        }
+
+        int files = Integer.parseInt(settings.getProperty("files", "1"));
+        int fileSize = Integer.parseInt(settings.getProperty("fileSize", "16"));
+        long newestVersion = Long.parseLong(settings.getProperty("newestVersion", "1"));
+        if ("GET".equals(command)) {
+            String folder = options.getProperty("-workingfolder", options.getProperty("-nonworkingfolder"));
+            for (String repositoryPath : positional) {
+                String name = repositoryPath.substring(repositoryPath.lastIndexOf('/') + 1);
+                if (name.indexOf('.') > 0) {
+                    //a single file
+                    write(new File(folder, name), fileSize);
+                    out.println("Getting " + repositoryPath);
+                    continue;
+                }
+                for (int i = 0; i < files; i++) {
+                    String file = "file" + i + ".txt";
+                    write(new File(folder, file), fileSize);
+                    out.println("Getting " + repositoryPath + "/" + file);
+                }
+            }
+            printSuccess(out);
+        } else if ("GETVERSION".equals(command)) {
+            String repositoryPath = positional.get(1);
+            write(new File(positional.get(2), repositoryPath.substring(repositoryPath.lastIndexOf('/') + 1)),
+                    fileSize);
+            out.println("Getting " + repositoryPath + " version " + positional.get(0));
+            printSuccess(out);
+        } else if ("LISTFOLDER".equals(command)) {
+            out.println("<vault>");
+            out.println("  <folder name=\"" + positional.get(0) + "\" version=\"" + newestVersion + "\">");
+            for (int i = 0; i < files; i++) {
+                out.println("    <file name=\"file" + i + ".txt\" version=\"1\" />");
+            }
+            out.println("  </folder>");
+            out.println("  <result success=\"yes\" />");
+            out.println("</vault>");
+        } else if ("VERSIONHISTORY".equals(command)) {
+            long end = Math.min(newestVersion, Long.parseLong(options.getProperty("-endversion",
+                    String.valueOf(newestVersion))));
+            long begin = Math.max(1, Long.parseLong(options.getProperty("-beginversion", "1")));
+            int rows = Integer.parseInt(options.getProperty("-rowlimit", "0"));
+            if (rows > 0) {
+                begin = Math.max(begin, end - rows + 1);
+            }
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writer.write("<vault>\n  <history>\n");
+            for (long version = end; version >= begin; version--) {
+                VaultHistoryFixtures.writeItem(writer, version);
+            }
+            writer.write("  </history>\n  <result success=\"yes\" />\n</vault>\n");
+            writer.flush();
+        } else if ("REMEMBERLOGIN".equals(command)) {
+            printSuccess(out);
+        } else {
+            out.println("<vault>");
+            out.println("  <error>Unknown command " + command + "</error>");
+            out.println("  <result success=\"no\" />");
+            out.println("</vault>");
+            out.flush();
+            return 1;
+        }
+        out.flush();
+        return 0;
+    }
+
+    private static void printSuccess(PrintStream out) {
+        out.println("<vault>");
+        out.println("  <result success=\"yes\" />");
+        out.println("</vault>");
+    }
+
+    /**
+     * Appends the arguments to the command log, locking it so concurrent
+     * commands do not interleave their lines.
+     */
+    private static void record(File log, String[] args) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (String arg : args) {
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            line.append(arg);
+        }
+        line.append('\n');
+        FileOutputStream out = new FileOutputStream(log, true);
+        try {
+            FileLock lock = out.getChannel().lock();
+            try {
+                out.write(line.toString().getBytes("UTF-8"));
+            } finally {
+                lock.release();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Adds to the number of commands running, and raises the peak if it
+     * is exceeded, under a lock shared by all commands.
+     */
+    private static void count(File file, String command, int delta) throws IOException {
+        RandomAccessFile counts = new RandomAccessFile(file, "rw");
+        try {
+            FileLock lock = counts.getChannel().lock();
+            try {
+                byte[] bytes = new byte[(int) counts.length()];
+                counts.readFully(bytes);
+                Properties properties = new Properties();
+                properties.load(new ByteArrayInputStream(bytes));
+                int now = Integer.parseInt(properties.getProperty(command + ".running", "0")) + delta;
+                int peak = Math.max(now, Integer.parseInt(properties.getProperty(command + ".peak", "0")));
+                properties.setProperty(command + ".running", String.valueOf(now));
+                properties.setProperty(command + ".peak", String.valueOf(peak));
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                properties.store(out, null);
+                counts.seek(0);
+                counts.setLength(0);
+                counts.write(out.toByteArray());
+            } finally {
+                lock.release();
+            }
+        } finally {
+            counts.close();
+        }
+    }
+
+    private static void write(File file, int size) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] line = (file.getName() + "\n").getBytes("UTF-8");
+            for (int written = 0; written < size; written += line.length) {
+                out.write(line, 0, Math.min(line.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks which lines of vault output count as fetched files.
+ */
+public class VaultGetOutputTest {
+
+    @Test
+    public void progressLinesNameItems() throws Exception {
+        assertTrue(namesItem("Getting $/project/file.txt"));
+        assertTrue(namesItem("  Updated $/project/sub/file.txt"));
+        assertTrue(namesItem("Getting $/project/file.txt -merge overwrite"));
+        assertTrue(namesItem("Fetching $/project/merge/file.txt"));
+    }
+
+    @Test
+    public void otherLinesAndProblemsDoNotNameItems() throws Exception {
+        assertFalse(namesItem("<item name=\"$/project\" version=\"3\" />"));
+        assertFalse(namesItem("Getting file.txt"));
+        assertFalse(namesItem("Getting $/project/file.txt: Needs Merge"));
+        assertFalse(namesItem("Updating $/project/file.txt failed: access denied"));
+    }
+
+    @Test
+    public void commandStatsCountTheSameLines() throws IOException {
+        VaultCommandStats.CountingOutputStream counter =
+                new VaultCommandStats.CountingOutputStream(new ByteArrayOutputStream());
+        String output = "<vault>\n"
+                + "Getting $/project/a.txt\n"
+                + "<item name=\"$/project\" version=\"3\" />\n"
+                + "Getting $/project/b.txt: Needs Merge\r\n"
+                + "Retrieved $/project/c.txt";
+        counter.write(output.getBytes("UTF-8"));
+        counter.endLine();
+
+        assertEquals(2, counter.getItems());
+    }
+
+    private static boolean namesItem(String line) throws IOException {
+        byte[] bytes = line.getBytes("UTF-8");
+        return VaultGetOutput.namesItem(bytes, bytes.length);
+    }
+}
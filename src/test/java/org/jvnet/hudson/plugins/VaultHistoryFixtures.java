@@ -0,0 +1,65 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Generates VERSIONHISTORY output the way the vault client prints it, with
+ * one &lt;item&gt; per folder version, newest first.
+ */
+final class VaultHistoryFixtures {
+
+    private VaultHistoryFixtures() {
+    }
+
+    /**
+     * @param items the number of history rows.
+     * @param newestVersion the folder version of the first row; the others
+     * count down from it.
+     */
+    static void writeHistory(OutputStream out, int items, long newestVersion) throws IOException {
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        writer.write("<vault>\n  <history>\n");
+        for (int i = 0; i < items; i++) {
+            writeItem(writer, newestVersion - i);
+        }
+        writer.write("  </history>\n  <result success=\"yes\" />\n</vault>\n");
+        writer.flush();
+    }
+
+    static void writeItem(Writer writer, long version) throws IOException {
+        writer.write("    <item txid=\"");
+        writer.write(String.valueOf(100000 + version));
+        writer.write("\" date=\"");
+        writer.write(date(version));
+        writer.write("\" name=\"$/project\" type=\"60\" version=\"");
+        writer.write(String.valueOf(version));
+        writer.write("\" user=\"user");
+        writer.write(String.valueOf(version % 10));
+        writer.write("\" comment=\"change ");
+        writer.write(String.valueOf(version));
+        writer.write(" &amp; &quot;fix&quot;\" objverid=\"");
+        writer.write(String.valueOf(version));
+        writer.write("\" />\n");
+    }
+
+    static String date(long version) {
+        long minutes = version % (60 * 24 * 28);
+        return String.format("2012-02-%02dT%02d:%02d:00", 1 + minutes / (60 * 24), (minutes / 60) % 24, minutes % 60);
+    }
+
+    static File writeHistory(File file, int items, long newestVersion) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            writeHistory(out, items, newestVersion);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
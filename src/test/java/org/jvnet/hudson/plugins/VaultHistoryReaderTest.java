@@ -0,0 +1,90 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Reads vault history XML with {@link VaultHistoryReader}.
+ */
+public class VaultHistoryReaderTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void readsLargeHistory() throws IOException {
+        File history = VaultHistoryFixtures.writeHistory(tmp.newFile("history.xml"), 150000, 200000);
+        InputStream in = new BufferedInputStream(new FileInputStream(history));
+        try {
+            VaultHistoryReader reader = new VaultHistoryReader(in);
+            int count = 0;
+            String lastVersion = null;
+            while (reader.next()) {
+                if (count == 0) {
+                    assertEquals("200000", reader.getVersion());
+                    assertEquals("user0", reader.getUser());
+                    assertEquals("change 200000 & \"fix\"", reader.getComment());
+                    assertEquals(VaultHistoryFixtures.date(200000), reader.getDate());
+                    assertNull(reader.getPath());
+                }
+                lastVersion = reader.getVersion();
+                count++;
+            }
+            reader.close();
+            assertEquals(150000, count);
+            assertEquals("50001", lastVersion);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void emptyHistoryHasNoItems() throws IOException {
+        VaultHistoryReader reader = reader("<vault><history /><result success=\"yes\" /></vault>");
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedHistoryFails() throws IOException {
+        VaultHistoryReader reader = reader("<vault><history><item version=\"2\" user=\"a\" /><item version=");
+        while (reader.next()) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void externalEntityIsRejected() throws IOException {
+        File secret = tmp.newFile("secret.txt");
+        FileOutputStream out = new FileOutputStream(secret);
+        out.write("secret".getBytes("UTF-8"));
+        out.close();
+        VaultHistoryReader reader = reader("<?xml version=\"1.0\"?>\n"
+                + "<!DOCTYPE vault [<!ENTITY xxe SYSTEM \"" + secret.toURI() + "\">]>\n"
+                + "<vault><history><item version=\"1\" user=\"a\" comment=\"&xxe;\" /></history></vault>");
+        while (reader.next()) {
+            assertFalse("external entity was expanded", reader.getComment().contains("secret"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void internalEntityIsRejected() throws IOException {
+        VaultHistoryReader reader = reader("<?xml version=\"1.0\"?>\n"
+                + "<!DOCTYPE vault [<!ENTITY a \"aaaaaaaaaa\"><!ENTITY b \"&a;&a;&a;&a;&a;&a;&a;&a;&a;&a;\">]>\n"
+                + "<vault><history><item version=\"1\" user=\"a\" comment=\"&b;\" /></history></vault>");
+        while (reader.next()) {
+        }
+    }
+
+    private static VaultHistoryReader reader(String xml) throws IOException {
+        return new VaultHistoryReader(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+}
@@ -0,0 +1,122 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.FilePath;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Synchronizes workspace folders from mirrors in a temporary folder with
+ * {@link VaultMirrorSync}.
+ */
+public class VaultMirrorSyncTest {
+
+    private static final Collection<String> MARKER = Collections.singleton(".vaultmirror");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File mirror;
+    private File workspace;
+
+    @Before
+    public void createFolders() throws IOException {
+        mirror = tmp.newFolder("mirror");
+        workspace = tmp.newFolder("workspace");
+        write(new File(mirror, ".vaultmirror"), "7");
+        write(new File(mirror, "a.txt"), "a");
+        write(new File(mirror, "sub/b.txt"), "b");
+    }
+
+    @Test
+    public void copiesNewAndChangedFilesOnly() throws Exception {
+        VaultMirrorSync.Result result = sync(null);
+        assertEquals(2, result.getCopied());
+        assertEquals(0, result.getUnchanged());
+        assertEquals("b", read(new File(workspace, "sub/b.txt")));
+        assertEquals(new File(mirror, "a.txt").lastModified(), new File(workspace, "a.txt").lastModified());
+        assertFalse(new File(workspace, ".vaultmirror").exists());
+
+        result = sync(null);
+        assertEquals(0, result.getCopied());
+        assertEquals(2, result.getUnchanged());
+
+        write(new File(mirror, "a.txt"), "changed");
+        result = sync(null);
+        assertEquals(1, result.getCopied());
+        assertEquals(1, result.getUnchanged());
+        assertEquals("changed", read(new File(workspace, "a.txt")));
+    }
+
+    @Test
+    public void manifestListsCopiedFilesAndLeavesBuildOutputAlone() throws Exception {
+        sync(null);
+        assertEquals("a.txt\nsub/b.txt\n", read(new File(workspace, VaultMirrorSync.MANIFEST)));
+
+        write(new File(workspace, "build.log"), "output");
+        assertTrue(new File(mirror, "sub/b.txt").delete());
+        VaultMirrorSync.Result result = sync(null);
+
+        assertEquals(1, result.getDeleted());
+        assertFalse(new File(workspace, "sub/b.txt").exists());
+        assertTrue(new File(workspace, "build.log").exists());
+        assertEquals("a.txt\n", read(new File(workspace, VaultMirrorSync.MANIFEST)));
+    }
+
+    @Test
+    public void prunesMirrorFilesNoLongerInTheRepository() throws Exception {
+        VaultMirrorSync.Result result = sync(Arrays.asList("a.txt"));
+
+        assertEquals(1, result.getPruned());
+        assertEquals(1, result.getCopied());
+        assertFalse(new File(mirror, "sub/b.txt").exists());
+        assertFalse(new File(workspace, "sub/b.txt").exists());
+        assertTrue(new File(mirror, ".vaultmirror").exists());
+    }
+
+    private VaultMirrorSync.Result sync(Collection<String> keep) throws Exception {
+        return new VaultMirrorSync(new FilePath(workspace), MARKER, keep).invoke(mirror, null);
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        file.getParentFile().mkdirs();
+        long modified = file.exists() ? file.lastModified() : 0;
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        //a change within the file system's time resolution must still show
+        if (file.lastModified() <= modified) {
+            file.setLastModified(modified + 2000);
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[1024];
+            int n;
+            while ((n = in.read(bytes)) > 0) {
+                buffer.write(bytes, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return buffer.toString("UTF-8");
+    }
+}
@@ -0,0 +1,78 @@
+package org.jvnet.hudson.plugins;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the folder filters of a location against a table of patterns and
+ * paths.
+ */
+public class VaultPathFilterTest {
+
+    /**
+     * Includes, excludes, a path relative to the repository path, and
+     * whether it is included, excluded, needs listing and may include
+     * something below it.
+     */
+    private static final Object[][] CASES = {
+        {"", "docs", "docs", true, true, false, true},
+        {"", "docs", "docs/images/logo.png", true, true, false, true},
+        {"", "docs", "", true, false, true, true},
+        {"", "docs", "src", true, false, false, true},
+        {"", "**/bin", "src/app/bin", true, true, true, true},
+        {"", "**/bin", "bin", true, true, true, true},
+        {"", "**/bin", "src", true, false, true, true},
+        {"", "src/*/bin", "src", true, false, true, true},
+        {"", "src/*/bin", "lib", true, false, false, true},
+        {"src/*", "", "src", false, false, true, true},
+        {"src/*", "", "src/app", true, false, false, true},
+        {"src/*", "", "src/app/Main.java", true, false, false, true},
+        {"src/*", "", "lib", false, false, true, false},
+        {"src/*", "src/app/bin", "src/app", true, false, true, true},
+        {"SRC", "", "src", true, false, false, true},
+        {"a?c", "", "abc", true, false, false, true},
+        {"a?c", "", "abbc", false, false, true, false},
+        {"src, test", "", "test", true, false, false, true},
+        {"src\ntest", "", "lib", false, false, true, false},
+        {"$/src/**", "", "src/a/b", true, false, false, true},
+        {"**/docs", "", "", false, false, true, true},
+    };
+
+    @Test
+    public void filtersPathsAsTabled() {
+        for (Object[] row : CASES) {
+            VaultPathFilter filter = new VaultPathFilter((String) row[0], (String) row[1]);
+            String path = (String) row[2];
+            String description = "includes '" + row[0] + "', excludes '" + row[1] + "', path '" + path + "': ";
+            assertEquals(description + "included", row[3], filter.isIncluded(path));
+            assertEquals(description + "excluded", row[4], filter.isExcluded(path));
+            assertEquals(description + "needs listing", row[5], filter.needsListing(path));
+            assertEquals(description + "may include below", row[6], filter.mayIncludeBelow(path));
+        }
+    }
+
+    @Test
+    public void emptyPatternsFilterNothing() {
+        assertTrue(new VaultPathFilter(null, null).isEmpty());
+        assertTrue(new VaultPathFilter(" , \n", "").isEmpty());
+        assertFalse(new VaultPathFilter(null, "docs").isEmpty());
+    }
+
+    @Test
+    public void localDirectoryStaysInTheWorkspace() {
+        assertTrue(VaultSCMLocation.isRelativeDirectory(null));
+        assertTrue(VaultSCMLocation.isRelativeDirectory(" "));
+        assertTrue(VaultSCMLocation.isRelativeDirectory("lib/common"));
+        assertTrue(VaultSCMLocation.isRelativeDirectory("a..b"));
+        assertFalse(VaultSCMLocation.isRelativeDirectory("../other"));
+        assertFalse(VaultSCMLocation.isRelativeDirectory("lib\\..\\..\\other"));
+        assertFalse(VaultSCMLocation.isRelativeDirectory("/tmp"));
+        assertFalse(VaultSCMLocation.isRelativeDirectory("\\\\server\\share"));
+        assertFalse(VaultSCMLocation.isRelativeDirectory("C:\\work"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void locationRejectsDirectoryOutsideTheWorkspace() {
+        new VaultSCMLocation("$/lib", "../lib", null, null);
+    }
+}
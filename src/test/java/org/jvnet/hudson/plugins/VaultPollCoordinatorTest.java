@@ -0,0 +1,120 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks how {@link VaultPollCoordinator} shares, expires and fails
+ * queries.
+ */
+public class VaultPollCoordinatorTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void resultIsReusedUntilCleared() throws Exception {
+        VaultPollCoordinator coordinator = new VaultPollCoordinator(TimeUnit.MINUTES.toMillis(1));
+        CountingQuery query = new CountingQuery();
+
+        assertEquals(1, coordinator.poll("key", query).getChangeCount());
+        assertEquals(1, coordinator.poll("key", query).getChangeCount());
+        assertEquals(1, coordinator.getHits());
+        coordinator.clear();
+        assertEquals(2, coordinator.poll("key", query).getChangeCount());
+        assertEquals(3, coordinator.poll("other", query).getChangeCount());
+    }
+
+    @Test
+    public void expiredResultIsQueriedAgain() throws Exception {
+        VaultPollCoordinator coordinator = new VaultPollCoordinator(10);
+        CountingQuery query = new CountingQuery();
+
+        assertEquals(1, coordinator.poll("key", query).getChangeCount());
+        Thread.sleep(50);
+        assertEquals(2, coordinator.poll("key", query).getChangeCount());
+        assertEquals(0, coordinator.getHits());
+        assertEquals(2, coordinator.getMisses());
+    }
+
+    @Test
+    public void failureReachesWaitingPollsAndIsNotCached() throws Exception {
+        final VaultPollCoordinator coordinator = new VaultPollCoordinator(TimeUnit.MINUTES.toMillis(1));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch fail = new CountDownLatch(1);
+        final VaultPollCoordinator.Query failing = new VaultPollCoordinator.Query() {
+            public VaultPollResult run() throws IOException, InterruptedException {
+                started.countDown();
+                fail.await();
+                throw new IOException("vault is down");
+            }
+        };
+
+        Future<VaultPollResult> owner = executor.submit(poll(coordinator, failing));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Future<VaultPollResult> waiter = executor.submit(poll(coordinator, new CountingQuery()));
+        while (coordinator.getHits() == 0) {
+            Thread.sleep(5);
+        }
+        fail.countDown();
+
+        assertFailedWith(owner, "vault is down");
+        assertFailedWith(waiter, "vault is down");
+        assertEquals(1, coordinator.poll("key", new CountingQuery()).getChangeCount());
+    }
+
+    @Test
+    public void keySeparatesCredentialsAndInstallations() {
+        String key = VaultPollCoordinator.key("server", "repo", "user", "secret", false, "vault", "$/a", "b");
+        assertEquals(key, VaultPollCoordinator.key("server", "repo", "user", "secret", false, "vault", "$/a", "b"));
+        assertFalse(key.equals(VaultPollCoordinator.key("server", "repo", "user", "other", false, "vault", "$/a", "b")));
+        assertFalse(key.equals(VaultPollCoordinator.key("server", "repo", "user", "secret", true, "vault", "$/a", "b")));
+        assertFalse(key.equals(VaultPollCoordinator.key("server", "repo", "user", "secret", false, "other", "$/a", "b")));
+        assertFalse(key.contains("secret"));
+    }
+
+    private static Callable<VaultPollResult> poll(final VaultPollCoordinator coordinator,
+            final VaultPollCoordinator.Query query) {
+        return new Callable<VaultPollResult>() {
+            public VaultPollResult call() throws Exception {
+                return coordinator.poll("key", query);
+            }
+        };
+    }
+
+    private static void assertFailedWith(Future<VaultPollResult> poll, String message) throws Exception {
+        try {
+            poll.get(10, TimeUnit.SECONDS);
+            fail("poll succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException);
+            assertEquals(message, e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Reports how often it has been run as its change count.
+     */
+    private static final class CountingQuery implements VaultPollCoordinator.Query {
+
+        private final AtomicInteger runs = new AtomicInteger();
+
+        public VaultPollResult run() {
+            return new VaultPollResult(runs.incrementAndGet(), null);
+        }
+    }
+}
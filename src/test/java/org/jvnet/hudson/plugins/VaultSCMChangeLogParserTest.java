@@ -0,0 +1,99 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.plugins.VaultSCMChangeLogSet.VaultSCMChangeLogSetEntry;
+import static org.junit.Assert.*;
+
+/**
+ * Parses build changelogs, in vault history XML and in the compact format.
+ */
+public class VaultSCMChangeLogParserTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void parsesLargeHistoryXml() throws Exception {
+        File changelog = VaultHistoryFixtures.writeHistory(tmp.newFile("changelog.xml"), 100000, 100000);
+        VaultSCMChangeLogSet set = parse(changelog);
+        assertEquals(100000, set.getSize());
+        assertEquals(Long.valueOf(100000), set.getSummary().getNewestVersion());
+        assertEquals(Long.valueOf(1), set.getSummary().getOldestVersion());
+        assertEquals(10, set.getSummary().getUsers().size());
+        assertEquals(100000, count(set));
+    }
+
+    @Test
+    public void parsesLargeCompactChangelog() throws Exception {
+        File changelog = tmp.newFile("changelog.xml");
+        VaultChangeLogWriter writer = new VaultChangeLogWriter(changelog);
+        assertEquals(60000, writer.append(
+                VaultHistoryFixtures.writeHistory(tmp.newFile("a.xml"), 60000, 160000), "$/a"));
+        assertEquals(Long.valueOf(100001), writer.getOldestVersion());
+        assertEquals(60000, writer.append(
+                VaultHistoryFixtures.writeHistory(tmp.newFile("b.xml"), 60000, 60000), "$/b"));
+        writer.close();
+
+        VaultSCMChangeLogSet set = parse(changelog);
+        assertEquals(120000, set.getSize());
+        assertEquals((120000 + set.getPageSize() - 1) / set.getPageSize(), set.getPageCount());
+        assertEquals(set.getPageSize(), set.getHead().size());
+        assertEquals("160000", set.getHead().get(0).getVersion());
+        assertEquals("change 160000 & \"fix\"", set.getHead().get(0).getComment());
+
+        List<VaultSCMChangeLogSetEntry> last = set.getPage(set.getPageCount() - 1);
+        assertEquals("1", last.get(last.size() - 1).getVersion());
+        assertEquals("$/b", last.get(0).getAffectedPaths().iterator().next());
+        assertTrue(set.getPage(set.getPageCount()).isEmpty());
+        assertEquals(120000, count(set));
+    }
+
+    @Test
+    public void missingChangelogIsEmpty() throws Exception {
+        VaultSCMChangeLogSet set = parse(new File(tmp.getRoot(), "missing.xml"));
+        assertTrue(set.isEmptySet());
+        assertFalse(set.iterator().hasNext());
+    }
+
+    @Test
+    public void emptyChangelogIsEmpty() throws Exception {
+        VaultSCMChangeLogSet set = parse(tmp.newFile("empty.xml"));
+        assertTrue(set.isEmptySet());
+        assertEquals(0, set.getPageCount());
+    }
+
+    @Test
+    public void historyWithoutItemsIsEmpty() throws Exception {
+        VaultSCMChangeLogSet set = parse(VaultHistoryFixtures.writeHistory(tmp.newFile("none.xml"), 0, 1));
+        assertTrue(set.isEmptySet());
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedChangelogFails() throws Exception {
+        File changelog = tmp.newFile("broken.xml");
+        FileOutputStream out = new FileOutputStream(changelog);
+        out.write("<vault><history><item version=\"1\" user=".getBytes("UTF-8"));
+        out.close();
+        parse(changelog);
+    }
+
+    private static VaultSCMChangeLogSet parse(File changelog) throws Exception {
+        return (VaultSCMChangeLogSet) new VaultSCMChangeLogParser().parse(null, changelog);
+    }
+
+    private static int count(VaultSCMChangeLogSet set) {
+        int count = 0;
+        for (Iterator<VaultSCMChangeLogSetEntry> it = set.iterator(); it.hasNext();) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,236 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Functions;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.util.StreamTaskListener;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that builds and polls running at the same time do not corrupt
+ * each other's vault command lines, and stay within the per server limits
+ * of concurrent commands.
+ */
+public class VaultSCMConcurrencyTest {
+
+    private static final int THREADS = 16;
+    /**
+     * Number of jobs building and polling at the same time.
+     */
+    private static final int PROJECTS = Integer.getInteger(VaultSCMConcurrencyTest.class.getName() + ".projects", 100);
+    /**
+     * Limit of concurrent GETs and of concurrent history queries.
+     */
+    private static final int LIMIT = 4;
+    private static final String DATE = "\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}";
+    private static final Pattern HISTORY = Pattern.compile(
+            "VERSIONHISTORY -repository repo -host vaultserver -user builder -password secret"
+            + "( -rowlimit \\d+)?( -beginversion \\d+)?( -endversion \\d+)?"
+            + "(?: -enddate (" + DATE + ") -begindate (" + DATE + "))? (\\$/project\\d+)");
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FakeVault vault;
+
+    @Before
+    public void installFakeVault() throws Exception {
+        Assume.assumeTrue(!Functions.isWindows());
+        vault = FakeVault.install(tmp.newFolder("vault"));
+        VaultSCM.DESCRIPTOR.setInstallations(vault.getInstallation());
+    }
+
+    @Test
+    public void formatsDatesFromManyThreads() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+        for (int i = 0; i < THREADS; i++) {
+            final long seed = i;
+            tasks.add(new Callable<String>() {
+                public String call() throws Exception {
+                    SimpleDateFormat expected = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+                    Random random = new Random(seed);
+                    start.await();
+                    for (int n = 0; n < 20000; n++) {
+                        //any second between 1970 and 2040
+                        Date date = new Date((random.nextLong() >>> 1) % (70L * 365 * 24 * 60 * 60) * 1000);
+                        String formatted = VaultSCM.formatVaultDate(date);
+                        if (!expected.format(date).equals(formatted)) {
+                            return date.getTime() + " was formatted as " + formatted
+                                    + " instead of " + expected.format(date);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (Callable<String> task : tasks) {
+                results.add(executor.submit(task));
+            }
+            start.countDown();
+            for (Future<String> result : results) {
+                assertNull(result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentBuildsAndPollsRunTheirOwnCommands() throws Exception {
+        j.jenkins.setNumExecutors(PROJECTS);
+        VaultSCM.DESCRIPTOR.setConcurrentGetLimit(LIMIT);
+        VaultSCM.DESCRIPTOR.setConcurrentHistoryLimit(LIMIT);
+        vault.set("newestVersion", 3).set("files", 3).set("latencyMillis", 200);
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+        for (int i = 0; i < PROJECTS; i++) {
+            FreeStyleProject project = j.createFreeStyleProject("project" + i);
+            project.setScm(vault.createSCM("$/project" + i));
+            projects.add(project);
+        }
+
+        //every project checks out at once
+        List<Callable<Object>> checkouts = new ArrayList<Callable<Object>>();
+        for (FreeStyleProject project : projects) {
+            checkouts.add(build(project));
+        }
+        List<Object> builds = runTogether(checkouts);
+        Set<String> expectedGets = new HashSet<String>();
+        for (int i = 0; i < PROJECTS; i++) {
+            FreeStyleBuild build = (FreeStyleBuild) builds.get(i);
+            expectedGets.add("GET -repository repo -host vaultserver -user builder -password secret"
+                    + " -merge overwrite -setfiletime modification -workingfolder "
+                    + build.getWorkspace().getRemote() + " $/project" + i);
+            assertTrue(build.getWorkspace().child("file2.txt").exists());
+            assertEquals(3, ((VaultSCMChangeLogSet) build.getChangeSet()).getSize());
+        }
+
+        //then even projects poll while odd projects build again, all at once
+        vault.set("newestVersion", 6);
+        VaultPollCoordinator.INSTANCE.clear();
+        final StreamTaskListener listener = StreamTaskListener.fromStdout();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < PROJECTS; i++) {
+            final FreeStyleProject project = projects.get(i);
+            if (i % 2 == 0) {
+                tasks.add(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        return project.poll(listener).hasChanges();
+                    }
+                });
+            } else {
+                tasks.add(build(project));
+            }
+        }
+        List<Object> results = runTogether(tasks);
+        for (int i = 0; i < PROJECTS; i++) {
+            if (i % 2 == 0) {
+                assertEquals("poll of $/project" + i, Boolean.TRUE, results.get(i));
+            } else {
+                assertEquals(3, ((VaultSCMChangeLogSet) ((FreeStyleBuild) results.get(i)).getChangeSet()).getSize());
+            }
+        }
+
+        //the folder version and changelog of every build, and the polls
+        int[] expectedQueries = new int[PROJECTS];
+        int expectedCommands = 0;
+        for (int i = 0; i < PROJECTS; i++) {
+            expectedQueries[i] = i % 2 == 0 ? 3 : 4;
+            expectedCommands += i % 2 == 0 ? 4 : 6;
+        }
+        List<String> commands = vault.getCommands();
+        assertEquals(commands.toString(), expectedCommands, commands.size());
+        List<String> gets = vault.getCommands("GET");
+        assertEquals(PROJECTS + PROJECTS / 2, gets.size());
+        assertEquals(expectedGets, new HashSet<String>(gets));
+        int[] queries = new int[PROJECTS];
+        Set<String> polled = new HashSet<String>();
+        for (String command : vault.getCommands("VERSIONHISTORY")) {
+            Matcher matcher = HISTORY.matcher(command);
+            assertTrue(command, matcher.matches());
+            if (matcher.group(4) != null) {
+                assertTrue(command, matcher.group(5).compareTo(matcher.group(4)) <= 0);
+            }
+            if (" -beginversion 4".equals(matcher.group(2)) && matcher.group(3) == null) {
+                polled.add(matcher.group(6));
+            }
+            queries[Integer.parseInt(matcher.group(6).substring("$/project".length()))]++;
+        }
+        for (int i = 0; i < PROJECTS; i++) {
+            assertEquals("queries of $/project" + i, expectedQueries[i], queries[i]);
+            assertEquals("poll of $/project" + i, i % 2 == 0, polled.contains("$/project" + i));
+        }
+
+        //the limits held, and were reached
+        assertTrue("GETs at once: " + vault.getPeak("GET"), vault.getPeak("GET") <= LIMIT);
+        assertTrue("history queries at once: " + vault.getPeak("VERSIONHISTORY"),
+                vault.getPeak("VERSIONHISTORY") <= LIMIT);
+        assertTrue("GETs at once: " + vault.getPeak("GET"), vault.getPeak("GET") > 1);
+        assertTrue("history queries at once: " + vault.getPeak("VERSIONHISTORY"),
+                vault.getPeak("VERSIONHISTORY") > 1);
+    }
+
+    private Callable<Object> build(final FreeStyleProject project) {
+        return new Callable<Object>() {
+            public Object call() throws Exception {
+                return j.assertBuildStatusSuccess(project.scheduleBuild2(0).get());
+            }
+        };
+    }
+
+    /**
+     * Starts the tasks on threads of their own, releases them together and
+     * waits for all of them.
+     *
+     * @return the results, in the order of the tasks.
+     */
+    private static List<Object> runTogether(List<Callable<Object>> tasks) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (final Callable<Object> task : tasks) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        start.await();
+                        return task.call();
+                    }
+                }));
+            }
+            start.countDown();
+            List<Object> results = new ArrayList<Object>();
+            for (Future<Object> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
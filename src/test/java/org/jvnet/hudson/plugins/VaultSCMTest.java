@@ -0,0 +1,159 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.util.StreamTaskListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.plugins.VaultSCMChangeLogSet.VaultSCMChangeLogSetEntry;
+import org.jvnet.hudson.test.JenkinsRule;
+import static org.junit.Assert.*;
+
+/**
+ * Runs checkout, polling and the changelog of jobs against {@link FakeVault}.
+ */
+public class VaultSCMTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FakeVault vault;
+
+    @Before
+    public void installFakeVault() throws Exception {
+        Assume.assumeTrue(!Functions.isWindows());
+        vault = FakeVault.install(tmp.newFolder("vault"));
+        VaultSCM.DESCRIPTOR.setInstallations(vault.getInstallation());
+    }
+
+    @Test
+    public void checkoutFetchesFilesAndRecordsHistory() throws Exception {
+        vault.set("newestVersion", 3).set("files", 5);
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(vault.createSCM("$/project"));
+
+        FreeStyleBuild build = j.assertBuildStatusSuccess(project.scheduleBuild2(0).get());
+
+        FilePath workspace = build.getWorkspace();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(workspace.child("file" + i + ".txt").exists());
+        }
+        List<String> gets = vault.getCommands("GET");
+        assertEquals(1, gets.size());
+        assertEquals("GET -repository repo -host vaultserver -user builder -password secret -merge overwrite"
+                + " -setfiletime modification -workingfolder " + workspace.getRemote() + " $/project", gets.get(0));
+        assertEquals(Long.valueOf(3), build.getAction(VaultSCMRevisionState.class).getRevision("$/project"));
+        assertEquals(Arrays.asList("3", "2", "1"), versions(build));
+    }
+
+    @Test
+    public void failedGetFailsTheBuild() throws Exception {
+        vault.set("exitCode.GET", 1);
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(vault.createSCM("$/project"));
+
+        j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0).get());
+        assertEquals(1, vault.getCommands("GET").size());
+    }
+
+    @Test
+    public void pollingFindsNewFolderVersions() throws Exception {
+        vault.set("newestVersion", 3);
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(vault.createSCM("$/project"));
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0).get());
+
+        StreamTaskListener listener = StreamTaskListener.fromStdout();
+        assertFalse(project.poll(listener).hasChanges());
+        vault.set("newestVersion", 5);
+        VaultPollCoordinator.INSTANCE.clear();
+        assertTrue(project.poll(listener).hasChanges());
+
+        List<String> history = vault.getCommands("VERSIONHISTORY");
+        assertTrue(history.get(history.size() - 1), history.get(history.size() - 1).contains(" -beginversion 4 "));
+    }
+
+    @Test
+    public void changelogHoldsOnlyChangesSinceTheLastBuild() throws Exception {
+        vault.set("newestVersion", 3);
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(vault.createSCM("$/project"));
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0).get());
+
+        vault.set("newestVersion", 5);
+        FreeStyleBuild build = j.assertBuildStatusSuccess(project.scheduleBuild2(0).get());
+
+        assertEquals(Arrays.asList("5", "4"), versions(build));
+        VaultSCMChangeLogSetEntry newest = ((VaultSCMChangeLogSet) build.getChangeSet()).getHead().get(0);
+        assertEquals("change 5 & \"fix\"", newest.getMsg());
+        assertEquals("user5", newest.getUserName());
+        List<String> history = vault.getCommands("VERSIONHISTORY");
+        assertTrue(history.get(history.size() - 1),
+                history.get(history.size() - 1).contains(" -beginversion 4 -endversion 5 $/project"));
+    }
+
+    @Test
+    public void unchangedFolderRecordsNoChanges() throws Exception {
+        vault.set("newestVersion", 3);
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(vault.createSCM("$/project"));
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0).get());
+
+        FreeStyleBuild build = j.assertBuildStatusSuccess(project.scheduleBuild2(0).get());
+
+        assertTrue(build.getChangeSet().isEmptySet());
+    }
+
+    @Test
+    public void fileAtAVersionIsFetchedOnce() throws Exception {
+        vault.set("fileSize", 20);
+        VaultSCM scm = vault.createSCM("$/project");
+        StreamTaskListener listener = StreamTaskListener.fromStdout();
+
+        assertEquals("build.xml\nbuild.xml\n", new String(scm.fetchFile("$/project/build.xml", 4L, listener), "UTF-8"));
+        assertEquals("build.xml\nbuild.xml\n", new String(scm.fetchFile("$/project/build.xml", 4L, listener), "UTF-8"));
+
+        List<String> fetches = vault.getCommands("GETVERSION");
+        assertEquals(1, fetches.size());
+        assertTrue(fetches.get(0), fetches.get(0).startsWith(
+                "GETVERSION -repository repo -host vaultserver -user builder -password secret 4 $/project/build.xml "));
+        assertTrue(vault.getCommands("GET").isEmpty());
+    }
+
+    @Test
+    public void newestFileIsFetchedEveryTime() throws Exception {
+        vault.set("fileSize", 10);
+        VaultSCM scm = vault.createSCM("$/project");
+        StreamTaskListener listener = StreamTaskListener.fromStdout();
+
+        assertEquals("notes.txt\n", new String(scm.fetchFile("$/project/notes.txt", null, listener), "UTF-8"));
+        vault.set("fileSize", 20);
+        assertEquals("notes.txt\nnotes.txt\n", new String(scm.fetchFile("$/project/notes.txt", null, listener), "UTF-8"));
+
+        List<String> fetches = vault.getCommands("GET");
+        assertEquals(2, fetches.size());
+        assertTrue(fetches.get(0), fetches.get(0).contains(" -nonworkingfolder "));
+        assertTrue(fetches.get(0), fetches.get(0).endsWith(" $/project/notes.txt"));
+        assertTrue(vault.getCommands("GETVERSION").isEmpty());
+    }
+
+    private static List<String> versions(FreeStyleBuild build) {
+        List<String> versions = new ArrayList<String>();
+        for (Object entry : build.getChangeSet()) {
+            versions.add(((VaultSCMChangeLogSetEntry) entry).getVersion());
+        }
+        return versions;
+    }
+}